@@ -1,7 +1,7 @@
 #!/bin/bash
 
 if [ -z "$1" ]; then
-  echo "Usage: $0 <name of APK> <obfuscation applied if any>"
+  echo "Usage: $0 <name of APK> <obfuscation applied if any> <directory to build, if not the decompiled one>"
   exit 1
 fi
 
@@ -9,12 +9,17 @@ p="$1.apk"
 
 basePath=../..
 
+if [ -n "$3" ]; then
+  # Working directory of a variant, discarded by the caller
+  java -jar $basePath/apktool/apktool.jar b "$3" -o $basePath/decompiled/"$1/dist/$2/$p" --use-aapt2 --debug
+  java -jar $basePath/apksigner/uber-apk-signer-1.3.0.jar -a $basePath/decompiled/"$1/dist/$2/$p" --allowResign --overwrite
+  exit
+fi
+
 if [ -z "$2" ]; then
   java -jar $basePath/apktool/apktool.jar b $basePath/decompiled/"$1" --use-aapt2 --debug
   java -jar $basePath/apksigner/uber-apk-signer-1.3.0.jar -a $basePath/decompiled/"$1"/dist/"$p" --allowResign --overwrite
 else
   java -jar $basePath/apktool/apktool.jar b $basePath/decompiled/"$1" -o $basePath/decompiled/"$1/dist/$2/$p" --use-aapt2 --debug
   java -jar $basePath/apksigner/uber-apk-signer-1.3.0.jar -a $basePath/decompiled/"$1/dist/$2/$p" --allowResign --overwrite
-fi
-
-bash cleanUp.sh "$1"
\ No newline at end of file
+fi
\ No newline at end of file
@@ -13,40 +13,4 @@ set "basePath=..\.."
 
 java -jar "%basePath%\apktool\apktool.jar" d "%p%" -o "%basePath%\decompiled"
 
-copy "%p%" %basePath%\apk.zip
-
-powershell -command "Expand-Archive -Path %basePath%\apk.zip -DestinationPath %basePath%\decomp"
-
-set "dexFiles="
-
-for /f "delims=" %%f in ('dir /b %basePath%\decomp\*classes*') do (
-  set "dexFiles=!dexFiles! %%f"
-)
-
-set i=1
-
-for %%f in (!dexFiles!) do (
-  "%basePath%\binaries\win\dexdump" -d "%basePath%\decomp\%%f" > "%basePath%\dump!i!.txt"
-  set /a i+=1
-)
-
-del "%basePath%\apk.zip"
-
-rmdir /s /q "%basePath%\decomp"
-
-cd "%basePath%\decompiled"
-
-(
-  echo dist
-  echo build
-) > .gitignore
-
-git init
-
-git config core.safecrlf false
-
-git add -A
-
-git commit -q -m "Initial commit"
-
 endlocal
\ No newline at end of file
@@ -9,6 +9,13 @@ set p=%1
 
 set "basePath=..\.."
 
+if not "%3"=="" (
+  rem Working directory of a variant, discarded by the caller
+  java -jar "%basePath%\apktool\apktool.jar" b "%3" -o "%basePath%\decompiled\%1\dist\%2\%p%.apk" --use-aapt2 --debug
+  java -jar "%basePath%\apksigner\uber-apk-signer-1.3.0.jar" -a "%basePath%\decompiled\%1\dist\%2\%p%.apk" --allowResign --overwrite
+  exit /b
+)
+
 java -jar "%basePath%\apktool\apktool.jar" b "%basePath%\decompiled" --use-aapt2 --debug
 
 java -jar "%basePath%\apksigner\uber-apk-signer-1.3.0.jar" -a "%basePath%\decompiled\dist\%p%" --allowResign --overwrite
\ No newline at end of file
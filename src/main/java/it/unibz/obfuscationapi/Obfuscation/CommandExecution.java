@@ -18,7 +18,7 @@ public class CommandExecution {
     public static final String os = System.getProperty("os.name").toLowerCase();
 
     /**
-     * Executes the script in the scripts folder to decompile the APK and generate the dumps of the dex files
+     * Executes the script in the scripts folder to decompile the APK
      *
      * @param pathToApk path to the original APK to decompile
      */
@@ -55,46 +55,41 @@ public class CommandExecution {
      * Executes the script in the scripts folder to rebuild and sign the APK
      */
     public static void rebuildAPK(String appName, String obfuscation) throws IOException, InterruptedException {
-        String errorLog;
-        int retCode;
-        String command;
-        if (os.contains("win")) {
-            File file = new File(Paths.get("scripts", "win").toString());
-            String[] cmd = {"cmd.exe", "/c", "rebuildAPK.cmd", appName, obfuscation};
-            String[] ret = execCommand(cmd, file);
-            retCode = Integer.parseInt(ret[0]);
-            errorLog = ret[1];
-            command = String.join(" ", cmd);
-        } else if (os.contains("mac") || os.contains("nix") || os.contains("nux") || os.contains("aix")) {
-            File file = new File(Paths.get("scripts", "unix").toString());
-            String[] cmd = {"bash", "rebuildAPK.sh", appName, obfuscation};
-            String[] ret = execCommand(cmd, file);
-            retCode = Integer.parseInt(ret[0]);
-            errorLog = ret[1];
-            command = String.join(" ", cmd);
-        } else {
-            throw new RuntimeException("Unsupported OS: " + os);
-        }
-        reportError(errorLog, retCode, command, "rebuildAPK");
+        rebuildAPK(appName, obfuscation, null);
     }
 
     /**
-     * Cleans up the decompiled directory deleting all added modifications because of the previous transformations
+     * Executes the script in the scripts folder to rebuild and sign the APK from a working directory of the variant,
+     * writing it in the dist folder of the decompiled APK<br>
+     * The APK is built in the running JVM by {@link InProcessBuild InProcessBuild} when the tools are available, the
+     * script is executed if they are not or the build fails
+     *
+     * @param sourceDir absolute path of the working directory to build, or null to build the decompiled directory
      */
-    public static void cleanUp() throws IOException, InterruptedException {
+    public static void rebuildAPK(String appName, String obfuscation, String sourceDir) throws IOException, InterruptedException {
+        Path source = sourceDir != null ? Paths.get(sourceDir) : Paths.get("decompiled", appName);
+        Path output = obfuscation == null || obfuscation.isEmpty()
+                ? Paths.get("decompiled", appName, "dist", appName + ".apk")
+                : Paths.get("decompiled", appName, "dist", obfuscation, appName + ".apk");
+        if (InProcessBuild.build(source, output))
+            return;
         String errorLog;
         int retCode;
         String command;
         if (os.contains("win")) {
             File file = new File(Paths.get("scripts", "win").toString());
-            String[] cmd = {"cmd.exe", "/c", "cleanUp.cmd"};
+            String[] cmd = sourceDir == null
+                    ? new String[]{"cmd.exe", "/c", "rebuildAPK.cmd", appName, obfuscation}
+                    : new String[]{"cmd.exe", "/c", "rebuildAPK.cmd", appName, obfuscation, sourceDir};
             String[] ret = execCommand(cmd, file);
             retCode = Integer.parseInt(ret[0]);
             errorLog = ret[1];
             command = String.join(" ", cmd);
         } else if (os.contains("mac") || os.contains("nix") || os.contains("nux") || os.contains("aix")) {
             File file = new File(Paths.get("scripts", "unix").toString());
-            String[] cmd = {"bash", "cleanUp.sh"};
+            String[] cmd = sourceDir == null
+                    ? new String[]{"bash", "rebuildAPK.sh", appName, obfuscation}
+                    : new String[]{"bash", "rebuildAPK.sh", appName, obfuscation, sourceDir};
             String[] ret = execCommand(cmd, file);
             retCode = Integer.parseInt(ret[0]);
             errorLog = ret[1];
@@ -102,7 +97,7 @@ public class CommandExecution {
         } else {
             throw new RuntimeException("Unsupported OS: " + os);
         }
-        reportError(errorLog, retCode, command, "cleanUp");
+        reportError(errorLog, retCode, command, "rebuildAPK");
     }
 
     /**
@@ -0,0 +1,158 @@
+package it.unibz.obfuscationapi.Obfuscation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Class that rebuilds and signs the APKs without the rebuild scripts: apktool runs in its own JVM, as its command line
+ * entry point terminates the JVM when a build fails and resets the global logging configuration, while the
+ * uber-apk-signer jar is called inside the running JVM through mainExecute, which returns the result instead of
+ * terminating, so that the signer is loaded and compiled by the JIT once rather than for every variant<br>
+ * The signer keeps static state, so each concurrent build gets its own isolated class loader, taken from a pool of at
+ * most {@link InProcessBuild#setConcurrentBuilds(int) concurrentBuilds} class loaders and reused by the following
+ * builds, which also bounds the apktool processes running at the same time. If the jars are missing or a build fails,
+ * {@link InProcessBuild#build(Path, Path) build} returns false and the caller falls back to the rebuild scripts
+ */
+public class InProcessBuild {
+    private static final Path APKTOOL_JAR = Paths.get("apktool", "apktool.jar");
+    private static final Path SIGNER_JAR = Paths.get("apksigner", "uber-apk-signer-1.3.0.jar");
+    private static boolean enabled = true;
+    private static int concurrentBuilds = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static int created;
+    private static final LinkedBlockingQueue<Tools> pool = new LinkedBlockingQueue<>();
+
+    synchronized public static void setEnabled(boolean enabled) {
+        InProcessBuild.enabled = enabled;
+    }
+
+    synchronized public static boolean isEnabled() {
+        return enabled && Files.isRegularFile(APKTOOL_JAR) && Files.isRegularFile(SIGNER_JAR);
+    }
+
+    /**
+     * Sets the maximum number of builds running at the same time, each one holding its own copy of the signer;
+     * further builds wait for one of them to complete
+     *
+     * @param concurrentBuilds maximum number of concurrent builds
+     */
+    synchronized public static void setConcurrentBuilds(int concurrentBuilds) {
+        if (concurrentBuilds < 1)
+            throw new IllegalArgumentException("At least one concurrent build is needed, got " + concurrentBuilds);
+        InProcessBuild.concurrentBuilds = concurrentBuilds;
+    }
+
+    /**
+     * Builds the APK from a decompiled directory with apktool, in a separate process, and signs it
+     *
+     * @param source path of the decompiled directory
+     * @param output path of the APK to generate
+     * @return true if the APK was built and signed, false if the tools are not available or failed
+     * @throws InterruptedException if the thread is interrupted while waiting for a free copy of the tools
+     */
+    public static boolean build(Path source, Path output) throws InterruptedException {
+        if (!isEnabled())
+            return false;
+        Tools tools;
+        try {
+            tools = acquire();
+        } catch (Exception e) {
+            System.out.println("In-process build unavailable, using the scripts: " + e);
+            setEnabled(false);
+            return false;
+        }
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+        try {
+            runApktool(source, output);
+            thread.setContextClassLoader(tools.signer);
+            Object result = tools.signerMain.invoke(null, (Object) new String[]{"-a", output.toAbsolutePath().toString(),
+                    "--allowResign", "--overwrite"});
+            if (result != null && (tools.signerError.getBoolean(result) || tools.signerUnsuccessful.getInt(result) > 0))
+                throw new IllegalStateException("uber-apk-signer could not sign " + output);
+            return true;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+            System.out.println("In-process build of " + output + " failed, using the scripts: " + cause);
+            return false;
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+            pool.put(tools);
+        }
+    }
+
+    /**
+     * Runs apktool b in a new JVM
+     *
+     * @throws IllegalStateException if apktool fails or does not generate the APK, with its output
+     */
+    private static void runApktool(Path source, Path output) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-jar", APKTOOL_JAR.toAbsolutePath().toString(), "b", source.toAbsolutePath().toString(), "-o",
+                output.toAbsolutePath().toString(), "--use-aapt2", "--debug")
+                .redirectErrorStream(true)
+                .start();
+        String log;
+        int retCode;
+        try (InputStream is = process.getInputStream()) {
+            log = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+            retCode = process.waitFor();
+        } finally {
+            if (process.isAlive())
+                process.destroyForcibly();
+        }
+        if (retCode != 0 || !Files.isRegularFile(output))
+            throw new IllegalStateException("apktool did not generate " + output + " (exit code " + retCode + "): " + log);
+    }
+
+    /**
+     * Returns a free copy of the tools, loading a new one if fewer than concurrentBuilds were loaded
+     */
+    private static Tools acquire() throws Exception {
+        Tools tools = pool.poll();
+        if (tools != null)
+            return tools;
+        synchronized (InProcessBuild.class) {
+            if (created < concurrentBuilds) {
+                tools = new Tools();
+                created++;
+                return tools;
+            }
+        }
+        return pool.take();
+    }
+
+    /**
+     * Copy of uber-apk-signer, in a class loader that only sees its jar and the platform classes
+     */
+    private static class Tools {
+        private final URLClassLoader signer;
+        // The main method of the signer terminates the JVM on errors, mainExecute returns the result instead
+        private final Method signerMain;
+        private final Field signerError;
+        private final Field signerUnsuccessful;
+
+        Tools() throws Exception {
+            ClassLoader parent = ClassLoader.getPlatformClassLoader();
+            signer = new URLClassLoader(new URL[]{SIGNER_JAR.toUri().toURL()}, parent);
+            signerMain = signer.loadClass("at.favre.tools.apksigner.SignTool").getDeclaredMethod("mainExecute", String[].class);
+            signerMain.setAccessible(true);
+            Class<?> result = signer.loadClass("at.favre.tools.apksigner.SignTool$Result");
+            signerError = result.getDeclaredField("error");
+            signerError.setAccessible(true);
+            signerUnsuccessful = result.getDeclaredField("unsuccessful");
+            signerUnsuccessful.setAccessible(true);
+        }
+    }
+}
@@ -4,26 +4,38 @@ import it.unibz.obfuscationapi.Transformation.AdvancedReflection.AdvancedReflect
 import it.unibz.obfuscationapi.Transformation.ArithmeticBranching.ArithmeticBranching;
 import it.unibz.obfuscationapi.Transformation.CallIndirection.CallIndirection;
 import it.unibz.obfuscationapi.Transformation.CodeReorder.CodeReorder;
+import it.unibz.obfuscationapi.Transformation.CompositeTransformation;
+import it.unibz.obfuscationapi.Transformation.DexBudget;
 import it.unibz.obfuscationapi.Events.EventCommandFactory;
 import it.unibz.obfuscationapi.Events.EventType;
+import it.unibz.obfuscationapi.Smali.DecompiledSnapshot;
+import it.unibz.obfuscationapi.Smali.SmaliWorkspace;
 import it.unibz.obfuscationapi.Transformation.IdentifierRenaming.IdentifierRenaming;
 import it.unibz.obfuscationapi.Transformation.JunkInsertion.Insertion.Insertion;
 import it.unibz.obfuscationapi.Transformation.JunkInsertion.NopToJunk.NopToJunk;
+import it.unibz.obfuscationapi.Transformation.SmaliTransformation;
+import it.unibz.obfuscationapi.Transformation.StringEncryption.AesCipher;
+import it.unibz.obfuscationapi.Transformation.StringEncryption.CaesarCipher;
+import it.unibz.obfuscationapi.Transformation.StringEncryption.StringCipher;
 import it.unibz.obfuscationapi.Transformation.StringEncryption.StringEncryption;
+import it.unibz.obfuscationapi.Transformation.StringEncryption.XorCipher;
 import it.unibz.obfuscationapi.Transformation.Transformation;
+import it.unibz.obfuscationapi.Utility.DexDumpParser;
+import it.unibz.obfuscationapi.Utility.DexMethodCounter;
+import it.unibz.obfuscationapi.Utility.DexMetrics;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import static it.unibz.obfuscationapi.Obfuscation.CommandExecution.*;
 import static it.unibz.obfuscationapi.Utility.Utilities.*;
@@ -37,11 +49,27 @@ import static it.unibz.obfuscationapi.Utility.Utilities.*;
  */
 public class Obfuscation {
     private final int logsPerCase;
+    private final String pathToApk;
     private final String path;
     private String pkg;
     private final ArrayList<String> smaliDirs;
     private final ArrayList<String> dexDumps;
+    // Number of methods of each dex file, counted the first time a transformation needs them
+    private final DexMetrics dexMetrics;
     private final ArrayList<Transformation> transformations;
+    // Files of the decompiled APK, kept in memory so that each file is read from disk only once for all the
+    // transformations applied
+    private final SmaliWorkspace workspace;
+    // Hashes of the files of the decompiled APK, used to restore the files modified in place after a build
+    private final DecompiledSnapshot snapshot;
+    // True if the variants are built reusing the output of a build of the unmodified APK
+    private boolean incrementalBuild;
+    private boolean baselineBuilt;
+    // Where CallIndirection adds the methods performing the invocations
+    private CallIndirection.StubPlacement callIndirectionStubPlacement = CallIndirection.StubPlacement.CALLING_CLASS;
+    private AdvancedReflection.InvocationMode advancedReflectionInvocationMode = AdvancedReflection.InvocationMode.REFLECTION;
+    private StringEncryption.DecryptionMode stringDecryptionMode = StringEncryption.DecryptionMode.INLINE;
+    private StringCipher stringCipher = new CaesarCipher();
     private final String appName;
     private String mainActivity;
     public final ArrayList<String> avds = new ArrayList<>();
@@ -52,14 +80,24 @@ public class Obfuscation {
     public Obfuscation(String pathToApk, int numAvds, String avdName, int logsPerCase) throws IOException, InterruptedException {
         this.logsPerCase = logsPerCase;
         transformations = new ArrayList<>();
+        this.pathToApk = pathToApk;
         appName = pathToApk.substring(pathToApk.lastIndexOf(SEPARATOR) + 1).replace(".apk", "");
         decompileAPK(pathToApk, appName);
         path = Paths.get("decompiled", appName).toString();
+        try {
+            snapshot = DecompiledSnapshot.take(path);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        workspace = new SmaliWorkspace(path);
+        workspace.setSnapshot(snapshot);
         setPkg();
         smaliDirs = new ArrayList<>();
         smaliDirs.add(path + SEPARATOR + "smali");
         dexDumps = new ArrayList<>();
         setMultiDex();
+        List<String> dumps = dexDumps;
+        dexMetrics = new DexMetrics(pathToApk, () -> countMethodsByDex(pathToApk, dumps));
         if (avdName != null) {
             avds.add(avdName);
             for (int i = 2; i <= numAvds; i++) {
@@ -87,13 +125,18 @@ public class Obfuscation {
         for (String avd : avds) {
             executorService.submit(() -> initDevice(avd));
         }
-        Future<?> task = null;
+        // The variants are built concurrently, each one in its own working directory
+        ArrayList<Future<?>> tasks = new ArrayList<>();
         for (Transformation t : transformations) {
-            task = executorService.submit(() -> applyTransformation(t));
+            tasks.add(executorService.submit(() -> applyTransformation(t)));
+        }
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException(e);
+            }
         }
-        do {
-            assert task != null;
-        } while (!task.isDone());
 
         for (int i = 0; i < avds.size(); i++) {
             executorService.submit(this::executeRuns);
@@ -160,12 +203,7 @@ public class Obfuscation {
     }
 
     public void addJunkCodeInsertion(ArrayList<String> dirsToExclude) {
-        Path pathToPackage = Paths.get(smaliDirs.getFirst(), pkg);
-        Insertion insertion;
-        if (dirsToExclude != null)
-            insertion = new Insertion(pathToPackage.toString(), dirsToExclude);
-        else
-            insertion = new Insertion(pathToPackage.toString());
+        Insertion insertion = createJunkCodeInsertion(dirsToExclude);
         transformations.forEach(transformation -> {
             if (transformation instanceof Insertion)
                 transformations.remove(transformation);
@@ -174,12 +212,7 @@ public class Obfuscation {
     }
 
     public void addNopToJunk(ArrayList<String> dirsToExclude) {
-        Path pathToPackage = Paths.get(smaliDirs.getFirst(), pkg);
-        NopToJunk nopToJunk;
-        if (dirsToExclude != null)
-            nopToJunk = new NopToJunk(pathToPackage.toString(), dirsToExclude);
-        else
-            nopToJunk = new NopToJunk(pathToPackage.toString());
+        NopToJunk nopToJunk = createNopToJunk(dirsToExclude);
         transformations.forEach(transformation -> {
             if (transformation instanceof NopToJunk)
                 transformations.remove(transformation);
@@ -188,12 +221,7 @@ public class Obfuscation {
     }
 
     public void addStringEncryption(ArrayList<String> dirsToExclude) {
-        Path pathToPackage = Paths.get(smaliDirs.getFirst(), pkg);
-        StringEncryption stringEncryption;
-        if (dirsToExclude != null)
-            stringEncryption = new StringEncryption(pathToPackage.toString(), dirsToExclude);
-        else
-            stringEncryption = new StringEncryption(pathToPackage.toString());
+        StringEncryption stringEncryption = createStringEncryption(dirsToExclude);
         transformations.forEach(transformation -> {
             if (transformation instanceof StringEncryption)
                 transformations.remove(transformation);
@@ -202,9 +230,7 @@ public class Obfuscation {
     }
 
     public void addIdentifierRenaming(String operation) {
-        Path pathToManifest = Paths.get(path, "AndroidManifest.xml");
-        IdentifierRenaming idRenaming = new IdentifierRenaming(
-                path, pathToManifest.toString(), Objects.requireNonNullElse(operation, "all"));
+        IdentifierRenaming idRenaming = createIdentifierRenaming(operation);
         transformations.forEach(transformation -> {
             if (transformation instanceof IdentifierRenaming)
                 transformations.remove(transformation);
@@ -213,12 +239,7 @@ public class Obfuscation {
     }
 
     public void addCodeReorder(ArrayList<String> dirsToExclude) {
-        Path pathToSmali = Paths.get(smaliDirs.getFirst(), pkg);
-        CodeReorder codeReorder;
-        if (dirsToExclude != null)
-            codeReorder = new CodeReorder(pathToSmali.toString(), dirsToExclude);
-        else
-            codeReorder = new CodeReorder(pathToSmali.toString());
+        CodeReorder codeReorder = createCodeReorder(dirsToExclude);
         transformations.forEach(transformation -> {
             if (transformation instanceof CodeReorder)
                 transformations.remove(transformation);
@@ -227,6 +248,113 @@ public class Obfuscation {
     }
 
     public void addCallIndirection(ArrayList<String> dirsToExclude) {
+        CallIndirection callIndirection = createCallIndirection(dirsToExclude);
+        transformations.forEach(transformation -> {
+            if (transformation instanceof CallIndirection)
+                transformations.remove(transformation);
+        });
+        transformations.add(callIndirection);
+    }
+
+    public void addArithmeticBranching(ArrayList<String> dirsToExclude) {
+        ArithmeticBranching arithmeticBranching = createArithmeticBranching(dirsToExclude);
+        transformations.forEach(transformation -> {
+            if (transformation instanceof ArithmeticBranching)
+                transformations.remove(transformation);
+        });
+        transformations.add(arithmeticBranching);
+    }
+
+    public void addAdvancedApiReflection(ArrayList<String> dirsToExclude) {
+        AdvancedReflection advancedReflection = createAdvancedApiReflection(dirsToExclude);
+        transformations.forEach(transformation -> {
+            if (transformation instanceof AdvancedReflection)
+                transformations.remove(transformation);
+        });
+        transformations.add(advancedReflection);
+    }
+
+    /**
+     * Adds a transformation applying in a single pass over the smali files the transformations with the given names
+     * (e.g. StringEncryption, CallIndirection, Insertion), each with its default settings; the transformations are
+     * applied in the order defined by their stages, see {@link CompositeTransformation CompositeTransformation}
+     * @param names simple class names of the transformations to combine
+     */
+    public void addCompositeTransformation(List<String> names) {
+        CompositeTransformation composite = createCompositeTransformation(names);
+        transformations.removeIf(transformation -> transformation.getName().equals(composite.getName()));
+        transformations.add(composite);
+    }
+
+    private CompositeTransformation createCompositeTransformation(List<String> names) {
+        ArrayList<SmaliTransformation> chain = new ArrayList<>();
+        for (String name : names) {
+            chain.add(createTransformation(name));
+        }
+        return new CompositeTransformation(chain);
+    }
+
+    /**
+     * Creates a transformation with its default settings
+     * @param name simple class name of the transformation
+     * @return the transformation
+     */
+    private SmaliTransformation createTransformation(String name) {
+        return switch (name) {
+            case "Insertion" -> createJunkCodeInsertion(null);
+            case "NopToJunk" -> createNopToJunk(null);
+            case "StringEncryption" -> createStringEncryption(null);
+            case "IdentifierRenaming" -> createIdentifierRenaming(null);
+            case "CodeReorder" -> createCodeReorder(null);
+            case "CallIndirection" -> createCallIndirection(null);
+            case "ArithmeticBranching" -> createArithmeticBranching(null);
+            case "AdvancedReflection" -> createAdvancedApiReflection(null);
+            default -> throw new IllegalArgumentException("Unknown transformation " + name);
+        };
+    }
+
+    private Insertion createJunkCodeInsertion(ArrayList<String> dirsToExclude) {
+        Path pathToPackage = Paths.get(smaliDirs.getFirst(), pkg);
+        if (dirsToExclude != null)
+            return new Insertion(pathToPackage.toString(), dirsToExclude);
+        else
+            return new Insertion(pathToPackage.toString());
+    }
+
+    private NopToJunk createNopToJunk(ArrayList<String> dirsToExclude) {
+        Path pathToPackage = Paths.get(smaliDirs.getFirst(), pkg);
+        if (dirsToExclude != null)
+            return new NopToJunk(pathToPackage.toString(), dirsToExclude);
+        else
+            return new NopToJunk(pathToPackage.toString());
+    }
+
+    private StringEncryption createStringEncryption(ArrayList<String> dirsToExclude) {
+        Path pathToPackage = Paths.get(smaliDirs.getFirst(), pkg);
+        StringEncryption stringEncryption;
+        if (dirsToExclude != null)
+            stringEncryption = new StringEncryption(pathToPackage.toString(), dirsToExclude);
+        else
+            stringEncryption = new StringEncryption(pathToPackage.toString());
+        stringEncryption.setDecryptionMode(stringDecryptionMode);
+        stringEncryption.setCipher(stringCipher);
+        return stringEncryption;
+    }
+
+    private IdentifierRenaming createIdentifierRenaming(String operation) {
+        Path pathToManifest = Paths.get(path, "AndroidManifest.xml");
+        return new IdentifierRenaming(path, pathToManifest.toString(), Objects.requireNonNullElse(operation, "all"));
+    }
+
+    private CodeReorder createCodeReorder(ArrayList<String> dirsToExclude) {
+        Path pathToSmali = Paths.get(smaliDirs.getFirst(), pkg);
+        if (dirsToExclude != null)
+            return new CodeReorder(pathToSmali.toString(), dirsToExclude);
+        else
+            return new CodeReorder(pathToSmali.toString());
+    }
+
+    private CallIndirection createCallIndirection(ArrayList<String> dirsToExclude) {
         HashMap<String, Integer> dirsByLimit;
         try {
             dirsByLimit = getSmaliDirsByMethodLimit();
@@ -238,60 +366,250 @@ public class Obfuscation {
             callIndirection = new CallIndirection(dirsByLimit, dirsToExclude);
         else
             callIndirection = new CallIndirection(dirsByLimit);
-        transformations.forEach(transformation -> {
-            if (transformation instanceof CallIndirection)
-                transformations.remove(transformation);
-        });
-        transformations.add(callIndirection);
+        callIndirection.setStubPlacement(callIndirectionStubPlacement);
+        return callIndirection;
     }
 
-    public void addArithmeticBranching(ArrayList<String> dirsToExclude) {
+    private ArithmeticBranching createArithmeticBranching(ArrayList<String> dirsToExclude) {
         Path pathToPackage = Paths.get(smaliDirs.getFirst(), pkg);
-        ArithmeticBranching arithmeticBranching;
         if (dirsToExclude != null)
-            arithmeticBranching = new ArithmeticBranching(pathToPackage.toString(), dirsToExclude);
+            return new ArithmeticBranching(pathToPackage.toString(), dirsToExclude);
         else
-            arithmeticBranching = new ArithmeticBranching(pathToPackage.toString());
-        transformations.forEach(transformation -> {
-            if (transformation instanceof ArithmeticBranching)
-                transformations.remove(transformation);
-        });
-        transformations.add(arithmeticBranching);
+            return new ArithmeticBranching(pathToPackage.toString());
     }
 
-    public void addAdvancedApiReflection(ArrayList<String> dirsToExclude) {
+    private AdvancedReflection createAdvancedApiReflection(ArrayList<String> dirsToExclude) {
         Path pathToPackage = Paths.get(smaliDirs.getFirst(), pkg);
         AdvancedReflection advancedReflection;
         if (dirsToExclude != null)
             advancedReflection = new AdvancedReflection(pathToPackage.toString(), dirsToExclude);
         else
             advancedReflection = new AdvancedReflection(pathToPackage.toString());
-        transformations.forEach(transformation -> {
-            if (transformation instanceof AdvancedReflection)
-                transformations.remove(transformation);
-        });
-        transformations.add(advancedReflection);
+        advancedReflection.setInvocationMode(advancedReflectionInvocationMode);
+        return advancedReflection;
     }
 
     /**
-     * Applies a chosen transformation to the decompiled APK and rebuilds it
+     * Applies a chosen transformation to the decompiled APK and rebuilds it<br>
+     * The transformation works on a fork of the workspace, which is then checked out in a working directory of the
+     * variant where the unchanged files are hard links to the decompiled directory; the decompiled directory is never
+     * modified, so multiple transformations can be applied and rebuilt at the same time
      * @param transformation transformation to be applied
      */
-    synchronized public void applyTransformation(Transformation transformation) {
+    public void applyTransformation(Transformation transformation) {
+        if (!(transformation instanceof SmaliTransformation smaliTransformation)) {
+            // The files are modified directly in the decompiled directory without recording the writes, so the whole
+            // directory is copied before the transformation and the files it changed are copied back after the build
+            synchronized (this) {
+                try {
+                    Path backup = snapshot.backup();
+                    try {
+                        transformation.obfuscate();
+                        buildAPK(transformation.getName());
+                    } finally {
+                        snapshot.restoreFrom(backup);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return;
+        }
+        SmaliWorkspace variantWorkspace = workspace.fork();
         try {
-            transformation.obfuscate();
+            smaliTransformation.setWorkspace(variantWorkspace);
+            smaliTransformation.setDexBudget(createDexBudget());
+            smaliTransformation.obfuscate();
+            buildVariant(variantWorkspace, transformation.getName());
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+    }
+
+    /**
+     * Builds a variant of the APK for each chain of transformations, the transformations of a chain being applied one
+     * after the other in the given order<br>
+     * The chains are arranged in a prefix tree, so that the transformations shared by the beginning of multiple chains
+     * are applied only once: the state of the smali files after a shared prefix is kept in memory and restored before
+     * each chain continuing from it, e.g. with the chains StringEncryption+CallIndirection and
+     * StringEncryption+CallIndirection+Insertion the second variant only applies Insertion to the first one
+     * @param chains chains of simple class names of the transformations (e.g. StringEncryption, CallIndirection)
+     */
+    public void applyTransformationChains(List<List<String>> chains) {
+        ChainNode root = new ChainNode(null);
+        int steps = 0;
+        for (List<String> chain : chains) {
+            if (chain.isEmpty())
+                throw new IllegalArgumentException("Empty chain of transformations");
+            ChainNode node = root;
+            for (String name : chain)
+                node = node.children.computeIfAbsent(name, ChainNode::new);
+            node.isVariant = true;
+            steps += chain.size();
+        }
+        int applied;
         try {
-            buildAPK(transformation.getClass().getSimpleName());
-        } catch (IOException | InterruptedException e) {
+            applied = applyChainNode(root, "", workspace.fork(), createDexBudget());
+        } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        System.out.println("Built " + chains.size() + " variants applying " + applied + " transformations instead of " + steps);
+    }
+
+    /**
+     * Applies the transformation of each child of a node of the prefix tree on top of the state reached by the node,
+     * building the variants ending there, then explores the child
+     * @param node      node of the prefix tree
+     * @param variant   name of the chain leading to the node
+     * @param workspace workspace holding the state reached by the node
+     * @param budget    methods that can still be added in the state reached by the node
+     * @return the number of transformations applied in the subtree
+     */
+    private int applyChainNode(ChainNode node, String variant, SmaliWorkspace workspace, DexBudget budget) throws Exception {
+        int applied = 0;
+        // The children but the first start from a state that was modified by their siblings
+        Map<String, String> snapshot = node.children.size() > 1 ? workspace.snapshot() : null;
+        DexBudget budgetSnapshot = node.children.size() > 1 ? budget.copy() : null;
+        boolean first = true;
+        for (ChainNode child : node.children.values()) {
+            if (!first) {
+                workspace.restore(snapshot);
+                budget.restore(budgetSnapshot);
+            }
+            first = false;
+            SmaliTransformation transformation = createTransformation(child.name);
+            transformation.setWorkspace(workspace);
+            transformation.setDexBudget(budget);
+            transformation.obfuscate();
+            applied++;
+            String childVariant = variant.isEmpty() ? child.name : variant + "+" + child.name;
+            if (child.isVariant)
+                buildVariant(workspace, childVariant);
+            applied += applyChainNode(child, childVariant, workspace, budget);
+        }
+        return applied;
+    }
+
+    /**
+     * Node of the prefix tree of the chains of transformations
+     */
+    private static class ChainNode {
+        private final String name;
+        private final LinkedHashMap<String, ChainNode> children = new LinkedHashMap<>();
+        // True if a chain ends with this node, so a variant is built from the state reached here
+        private boolean isVariant;
+
+        private ChainNode(String name) {
+            this.name = name;
+        }
     }
 
+    /**
+     * Rebuilds the APK from the decompiled directory, then restores the files written or created in it since the
+     * snapshot taken after the decompilation
+     * @param transformation name of the variant
+     */
     synchronized public void buildAPK(String transformation) throws IOException, InterruptedException {
-        rebuildAPK(appName, transformation);
+        try {
+            rebuildAPK(appName, transformation);
+        } finally {
+            try {
+                snapshot.restore();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Enables or disables the incremental build of the variants: the unmodified APK is built once, in
+     * decompiled/{appName}/dist, and each variant only assembles again the smali directories containing files changed
+     * by its transformations, and compiles the resources only if they were changed, reusing the output of that build
+     * for the rest
+     * @param incrementalBuild true to build the variants incrementally
+     */
+    public void setIncrementalBuild(boolean incrementalBuild) {
+        this.incrementalBuild = incrementalBuild;
+    }
+
+    /**
+     * Sets where CallIndirection adds the methods performing the invocations, see
+     * {@link CallIndirection.StubPlacement StubPlacement}; applies to the CallIndirection transformations created from
+     * then on
+     * @param callIndirectionStubPlacement placement of the methods
+     */
+    public void setCallIndirectionStubPlacement(CallIndirection.StubPlacement callIndirectionStubPlacement) {
+        this.callIndirectionStubPlacement = callIndirectionStubPlacement;
+    }
+
+    /**
+     * Sets how AdvancedReflection performs the dangerous api calls it replaces, see
+     * {@link AdvancedReflection.InvocationMode InvocationMode}; applies to the AdvancedReflection transformations
+     * created from then on
+     * @param advancedReflectionInvocationMode invocation mode of the calls
+     */
+    public void setAdvancedReflectionInvocationMode(AdvancedReflection.InvocationMode advancedReflectionInvocationMode) {
+        this.advancedReflectionInvocationMode = advancedReflectionInvocationMode;
+    }
+
+    /**
+     * Sets where StringEncryption decrypts the strings at runtime, see
+     * {@link StringEncryption.DecryptionMode DecryptionMode}; applies to the StringEncryption transformations created
+     * from then on
+     * @param stringDecryptionMode decryption mode of the strings
+     */
+    public void setStringDecryptionMode(StringEncryption.DecryptionMode stringDecryptionMode) {
+        this.stringDecryptionMode = stringDecryptionMode;
+    }
+
+    /**
+     * Sets the cipher StringEncryption encrypts the strings with, e.g. {@link XorCipher XorCipher} or
+     * {@link AesCipher AesCipher}; applies to the StringEncryption transformations created from then on
+     * @param stringCipher cipher of the strings, a {@link CaesarCipher CaesarCipher} by default
+     */
+    public void setStringCipher(StringCipher stringCipher) {
+        this.stringCipher = stringCipher;
+    }
+
+    /**
+     * Builds the unmodified APK, if it was not built yet, so that its build directory can be reused by the variants
+     */
+    synchronized private void buildBaseline() throws IOException, InterruptedException {
+        if (baselineBuilt)
+            return;
+        buildAPK("");
+        baselineBuilt = true;
+    }
+
+    /**
+     * @return a budget of the methods that can be added to each dex file of the APK, shared by the transformations
+     * applied to a variant
+     */
+    private DexBudget createDexBudget() {
+        try {
+            return new DexBudget(getSmaliDirsByMethodLimit());
+        } catch (FileNotFoundException | UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Checks out the state of a workspace in a working directory of the variant, under decompiled/variants/{appName},
+     * rebuilds the APK from it and deletes it
+     * @param variantWorkspace workspace holding the transformed files of the variant
+     * @param variant          name of the variant
+     */
+    private void buildVariant(SmaliWorkspace variantWorkspace, String variant) throws Exception {
+        Path variantDir = Paths.get("decompiled", "variants", appName, variant);
+        deleteDirectory(variantDir);
+        try {
+            if (incrementalBuild)
+                buildBaseline();
+            Path dir = variantWorkspace.checkout(variantDir, incrementalBuild);
+            rebuildAPK(appName, variant, dir.toString());
+        } finally {
+            deleteDirectory(variantDir);
+        }
     }
 
     /**
@@ -301,9 +619,8 @@ public class Obfuscation {
     public void runApk(String AE, String transformation, int logNumber, Path pathToLogs, String avd, int port) throws IOException, InterruptedException {
         String pkg;
         String mainActivity;
-        if (transformation.equals("IdentifierRenaming")) {
-            IdentifierRenaming idRenaming = (IdentifierRenaming) transformations.stream()
-                    .filter(t -> t instanceof IdentifierRenaming).findFirst().get();
+        IdentifierRenaming idRenaming = findIdentifierRenaming(transformation);
+        if (idRenaming != null) {
             pkg = idRenaming.modifiedPkgName;
             mainActivity = "/." + idRenaming.newMainClassName;
         } else {
@@ -316,6 +633,28 @@ public class Obfuscation {
         generateLog(pkg.replace("/", "."), mainActivity, pathToLogFile, port, AE);
     }
 
+    /**
+     * Returns the IdentifierRenaming applied by the transformation with the given name, either directly or as part of a
+     * composite transformation, because the renamed package and main class are needed to launch the application
+     * @param transformation name of the transformation
+     * @return the IdentifierRenaming, or null if the transformation does not rename the identifiers
+     */
+    private IdentifierRenaming findIdentifierRenaming(String transformation) {
+        for (Transformation t : transformations) {
+            if (!t.getName().equals(transformation))
+                continue;
+            if (t instanceof IdentifierRenaming idRenaming)
+                return idRenaming;
+            if (t instanceof CompositeTransformation composite) {
+                for (SmaliTransformation step : composite.getTransformations()) {
+                    if (step instanceof IdentifierRenaming idRenaming)
+                        return idRenaming;
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Method returns the number of the log to be generated for a given log folder, incrementing the entry in the
      * logsByNumber hashMap for the given pathToLogs
@@ -380,7 +719,9 @@ public class Obfuscation {
 
     /**
      * Determines if the project is multidex and adds the directories containing the smali files to
-     * {@link Obfuscation#smaliDirs smaliDirs} and the dumps of the dex files to {@link Obfuscation#dexDumps dexDumps}
+     * {@link Obfuscation#smaliDirs smaliDirs} and the paths of the dumps of the dex files to
+     * {@link Obfuscation#dexDumps dexDumps}: decompiled/{appName}/dump{n}.txt for classes{n}.dex (dump1.txt for
+     * classes.dex). The dumps are not generated by the decompilation, they can be supplied by the user with dexdump -d
      */
     private void setMultiDex() {
         boolean isMultiDex = false;
@@ -401,120 +742,64 @@ public class Obfuscation {
     }
 
     /**
-     * If the APK is multiDex this method counts the number of methods for every dex file
+     * Computes for every smali directory the number of methods that can still be added to its dex file, from the
+     * number of methods of each dex file held by {@link DexMetrics DexMetrics}: they are counted the first time they
+     * are needed and saved next to the decompiled APK, so later runs on the same APK don't count them again
      *
-     * @return HashMap containing the pairs path of dexdump and the number of methods in the files inside of it
+     * @return HashMap containing the pairs path of the package in the smali directory and the number of methods that
+     * can be added
      */
     public HashMap<String, Integer> getSmaliDirsByMethodLimit() throws FileNotFoundException, UnsupportedEncodingException {
-        return dexDumps.stream()
-                .collect(Collectors.toMap(
-                        dir -> smaliDirs.get(dexDumps.indexOf(dir)) + SEPARATOR + pkg.replace("/", SEPARATOR),
-                        dir -> {
-                            try {
-                                return 65534 - countMethodsInDex(dir);
-                            } catch (FileNotFoundException | UnsupportedEncodingException e) {
-                                throw new RuntimeException(e);
-                            }
-                        },
-                        (_, replacement) -> replacement,
-                        HashMap::new
-                ));
+        TreeMap<Integer, Integer> methodsByDex;
+        try {
+            methodsByDex = dexMetrics.getMethodsByDex();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        HashMap<String, Integer> dirsByLimit = new HashMap<>();
+        for (int i = 0; i < smaliDirs.size(); i++) {
+            dirsByLimit.put(smaliDirs.get(i) + SEPARATOR + pkg.replace("/", SEPARATOR),
+                    DexBudget.METHOD_LIMIT - methodsByDex.getOrDefault(i + 1, 0));
+        }
+        return dirsByLimit;
     }
 
     /**
-     * Counts all the methods inside a dex file
-     * Because dex files can be huge, storing a StringBuffer in memory with the whole content of the file could be
-     * detrimental to the speed of execution of the program if it occupies too much space; to avoid this, the dex file
-     * contents are read sequentially and analyzed one at a time
-     * With the current chunkSize we allocate 2MB of memory for the buffer to read from, and the StringBuilder will be
-     * around the same size, so we're occupying in total around 4MB of memory with the objects in this method
+     * Counts the method references of the dex files of the APK from their headers with
+     * {@link DexMethodCounter DexMethodCounter}; if the APK can't be read, the methods are counted in the dumps of the
+     * dex files, if all of them exist
      *
-     * @param dexDump string containing the path to the dex file
-     * @return the number of unique methods contained in a dex file
+     * @param pathToApk path of the APK
+     * @param dexDumps  paths of the dumps of the dex files, in the order of the dex files
+     * @return the number of methods by index of the dex file, 1 for classes.dex, n for classesn.dex
+     * @throws IOException if the APK can't be read and the dumps are missing
      */
-    public int countMethodsInDex(String dexDump) throws FileNotFoundException, UnsupportedEncodingException {
-        HashSet<String> uniqueMethods = new HashSet<>();
-        Pattern pattern = Pattern.compile("(Class #[0-9]+)(?s)(.*?)(source_file_idx.*?\\))");
-        try (BufferedReader reader = new BufferedReader(new FileReader(dexDump))) {
-            int chunkSize = 2097152;
-            char[] buffer = new char[chunkSize];
-            StringBuilder sb = new StringBuilder();
-            int charsRead;
-            while ((charsRead = reader.read(buffer, 0, chunkSize)) != -1) {
-                sb.append(buffer, 0, charsRead);
-                Matcher matcher;
-                // If the matcher does not find a match, then it means we might have a truncated match, so we continue
-                // reading until we find the match, or if we get to the end, it means that there is nothing left of
-                // interest to read
-                while (true) {
-                    matcher = pattern.matcher(sb.toString());
-                    if (matcher.find()) {
-                        break;
-                    } else {
-                        if ((charsRead = reader.read(buffer, 0, chunkSize)) != -1) {
-                            sb.append(buffer, 0, charsRead);
-                        } else {
-                            // If the matcher could not find the class regex, and we have finished reading the dex file
-                            // it means that in the rest of the file there are no more useful information for us
-                            return uniqueMethods.size();
-                        }
-                    }
-                }
-
-                countMethodsInDexChunk(sb, uniqueMethods);
-                int end = 0;
-                while (matcher.find())
-                    end = matcher.end();
-                // We need to ensure not to delete a truncated match inside the StringBuilder because if so, the
-                // information would get lost in the next iteration; because of this we delete everything until the end
-                // of the last match and keep the last part
-                sb.delete(0, end);
-            }
+    private static TreeMap<Integer, Integer> countMethodsByDex(String pathToApk, List<String> dexDumps) throws IOException {
+        try {
+            return DexMethodCounter.countMethodReferences(pathToApk);
         } catch (IOException e) {
-            e.printStackTrace();
+            for (String dexDump : dexDumps) {
+                if (!Files.exists(Paths.get(dexDump)))
+                    throw e;
+            }
+            System.out.println("Could not read the dex files of " + pathToApk + ", counting the methods in the dumps: " + e);
         }
-        return uniqueMethods.size();
+        TreeMap<Integer, Integer> methodsByDex = new TreeMap<>();
+        for (int i = 0; i < dexDumps.size(); i++)
+            methodsByDex.put(i + 1, DexDumpParser.countMethods(dexDumps.get(i)));
+        return methodsByDex;
     }
 
-
     /**
-     * Updates the HashSet provided adding all unique methods found in a chunk of the dex file
+     * Counts all the methods inside a dex file, parsing its dump with {@link DexDumpParser DexDumpParser}; the dump is
+     * supplied by the user, generated with the dexdump binary of the Android build tools (e.g. binaries/mac/dexdump -d
+     * classes.dex > dump1.txt)
      *
-     * @param dexChunk StringBuilder containing the chunk of the dex file to analyze
+     * @param dexDump string containing the path to the dump of the dex file
+     * @return the number of unique methods contained in a dex file
      */
-    public void countMethodsInDexChunk(StringBuilder dexChunk, HashSet<String> uniqueMethods) throws FileNotFoundException, UnsupportedEncodingException {
-        Pattern pattern = Pattern.compile("(Class #[0-9]+)(?s)(.*?)(source_file_idx.*?\\))");
-        Matcher matcher = pattern.matcher(dexChunk);
-        while (matcher.find()) {
-            String classBody = matcher.group(2);
-            Pattern pattern1 = Pattern.compile("Direct methods(?s)(.*)Virtual methods");
-            Matcher matcher1 = pattern1.matcher(classBody);
-            String methods = "";
-            if (matcher1.find()) {
-                classBody = classBody.substring(matcher1.start());
-                methods += matcher1.group(1);
-            }
-            pattern1 = Pattern.compile("Virtual methods(?s)(.*)");
-            matcher1 = pattern1.matcher(classBody);
-            if (matcher1.find()) {
-                methods += matcher1.group(1);
-            }
-            // In the dex file decompiled with the -d option, we have all methods declared in the classes contained in
-            // said dex, but also all references to external libraries, whose methods are counted towards the limit of
-            // 65536 methods, so the methods we need to count can be in the form of declaration or invocation; because
-            // methods can be invoked more than once, we count the methods using a set, not to have duplicates
-            pattern1 = Pattern.compile("((?s)\\(in (.*?;)\\).*?name.*?'(.*?)'.*?type.*?'(.*?)')|(invoke-.*?(L.*?;)\\.(.*?):(.*?) )");
-            matcher1 = pattern1.matcher(methods);
-            while (matcher1.find()) {
-                String method;
-                if (matcher1.group(1) != null) {
-                    method = matcher1.group(2) + "->" + matcher1.group(3) + matcher1.group(4);
-                } else {
-                    method = matcher1.group(6) + "->" + matcher1.group(7) + matcher1.group(8);
-                }
-                uniqueMethods.add(method);
-            }
-        }
+    public int countMethodsInDex(String dexDump) throws IOException {
+        return DexDumpParser.countMethods(dexDump);
     }
 
     /**
@@ -522,7 +807,7 @@ public class Obfuscation {
      */
     private void executeRuns() {
         for (Transformation t : transformations) {
-            String transformation = t.getClass().getSimpleName();
+            String transformation = t.getName();
             for (EventType eventType : EventType.values()) {
                 int exceptionCount = 0;
                 Path pathToLogs = Paths.get("logs", appName, transformation, eventType.toString());
@@ -0,0 +1,260 @@
+package it.unibz.obfuscationapi.Smali;
+
+import it.unibz.obfuscationapi.Transformation.TransformationEngine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Snapshot of the files of a decompiled APK, taken right after the decompilation, that allows to bring the directory
+ * back to its original state after it was modified in place<br>
+ * The snapshot records the CRC32C of every file, and the original contents of a file only when it is about to be
+ * overwritten through {@link DecompiledSnapshot#recordWrite(String) recordWrite}, so that its memory footprint and the
+ * cost of a {@link DecompiledSnapshot#restore() restore} are proportional to the files modified rather than to the
+ * size of the tree. Files created after the snapshot (e.g. the classes added in smali/com/123456789 and
+ * smali/com/apireflectionmanager) are deleted by the restore together with the directories created for them<br>
+ * The transformations that can't record their writes work on a {@link DecompiledSnapshot#backup() backup} of the whole
+ * tree instead, from which the directory is brought back by {@link DecompiledSnapshot#restoreFrom(Path) restoreFrom}
+ */
+public class DecompiledSnapshot {
+    private final Path root;
+    // CRC32C of the files of the decompiled APK at the time of the snapshot, by path relative to the root
+    private final ConcurrentHashMap<String, Long> hashes = new ConcurrentHashMap<>();
+    // Directories existing at the time of the snapshot, which are never deleted by a restore
+    private final Set<String> directories = ConcurrentHashMap.newKeySet();
+    // Original contents of the files overwritten since the last restore, by path relative to the root
+    private final ConcurrentHashMap<String, byte[]> originals = new ConcurrentHashMap<>();
+    // Original modification times of the overwritten files, restored with them so that the builds reusing the output
+    // of a previous build do not consider them modified
+    private final ConcurrentHashMap<String, FileTime> modificationTimes = new ConcurrentHashMap<>();
+    // Files created since the last restore, by path relative to the root
+    private final Set<String> created = ConcurrentHashMap.newKeySet();
+
+    private DecompiledSnapshot(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Takes the snapshot of a decompiled APK
+     *
+     * @param root path of the directory of the decompiled APK
+     * @return the snapshot
+     * @throws Exception if a file can't be read
+     */
+    public static DecompiledSnapshot take(String root) throws Exception {
+        DecompiledSnapshot snapshot = new DecompiledSnapshot(Paths.get(root).toAbsolutePath().normalize());
+        List<String> keys = snapshot.listFiles();
+        TransformationEngine.run("DecompiledSnapshot", keys, key -> snapshot.hashes.put(key, hash(snapshot.root.resolve(key))));
+        for (String key : keys) {
+            Path dir = Paths.get(key).getParent();
+            while (dir != null && snapshot.directories.add(dir.toString()))
+                dir = dir.getParent();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the number of files recorded by the snapshot
+     */
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * Records that a file is about to be written, keeping its original contents the first time it is overwritten
+     *
+     * @param key path of the file relative to the root
+     * @throws IOException if the original contents can't be read
+     */
+    public void recordWrite(String key) throws IOException {
+        if (!hashes.containsKey(key)) {
+            created.add(key);
+            return;
+        }
+        if (originals.containsKey(key))
+            return;
+        try {
+            modificationTimes.putIfAbsent(key, Files.getLastModifiedTime(root.resolve(key)));
+            originals.putIfAbsent(key, Files.readAllBytes(root.resolve(key)));
+        } catch (NoSuchFileException e) {
+            // The hash alone is not enough to restore the file
+            throw new IllegalStateException(key + " was deleted after the snapshot was taken", e);
+        }
+    }
+
+    /**
+     * @return the paths, relative to the root, of the files written or created since the last restore
+     */
+    public Set<String> getWriteSet() {
+        ArrayList<String> keys = new ArrayList<>(originals.keySet());
+        keys.addAll(created);
+        return Set.copyOf(keys);
+    }
+
+    /**
+     * Brings the directory back to the state of the snapshot, rewriting the files recorded as written and deleting the
+     * created ones; the files are replaced rather than overwritten, so the working directories linking them keep the
+     * modified version
+     *
+     * @return the number of files restored or deleted
+     * @throws Exception if a file can't be restored
+     */
+    public int restore() throws Exception {
+        ArrayList<String> keys = new ArrayList<>(originals.keySet());
+        TransformationEngine.run("DecompiledSnapshot restore", keys, key -> {
+            SmaliWorkspace.replace(root.resolve(key), originals.get(key));
+            Files.setLastModifiedTime(root.resolve(key), modificationTimes.remove(key));
+            originals.remove(key);
+        });
+        int restored = keys.size();
+        for (String key : List.copyOf(created)) {
+            Path path = root.resolve(key);
+            Files.deleteIfExists(path);
+            deleteEmptyParents(path.getParent());
+            created.remove(key);
+            restored++;
+        }
+        return restored;
+    }
+
+    /**
+     * Copies every file of the snapshot to a temporary directory, for the transformations modifying the directory
+     * without recording their writes: the copy is the only way to bring back the files they change. The files must
+     * still match the snapshot
+     *
+     * @return the directory holding the copy, to be passed to {@link DecompiledSnapshot#restoreFrom(Path) restoreFrom}
+     * @throws Exception if a file can't be copied or no longer matches the snapshot
+     */
+    public Path backup() throws Exception {
+        Path backup = Files.createTempDirectory("decompiled-backup");
+        try {
+            TransformationEngine.run("DecompiledSnapshot backup", List.copyOf(hashes.keySet()), key -> {
+                Path copy = backup.resolve(key);
+                Files.createDirectories(copy.getParent());
+                Files.copy(root.resolve(key), copy, StandardCopyOption.COPY_ATTRIBUTES);
+                if (hash(copy) != hashes.get(key))
+                    throw new IllegalStateException(key + " was modified after the snapshot was taken");
+            });
+        } catch (Exception e) {
+            deleteBackup(backup);
+            throw e;
+        }
+        return backup;
+    }
+
+    /**
+     * Brings the directory back to the state of the snapshot after it was modified without recording the writes:
+     * restores the recorded writes, then copies back from the backup the files changed or deleted and deletes the
+     * files created, and finally deletes the backup
+     *
+     * @param backup directory returned by {@link DecompiledSnapshot#backup() backup}
+     * @return the number of files restored or deleted
+     * @throws Exception if a file can't be restored, or the directory still differs from the snapshot
+     */
+    public int restoreFrom(Path backup) throws Exception {
+        try {
+            int restored = restore();
+            for (String key : findUnrecordedChanges()) {
+                Path path = root.resolve(key);
+                if (hashes.containsKey(key)) {
+                    SmaliWorkspace.replace(path, Files.readAllBytes(backup.resolve(key)));
+                    Files.setLastModifiedTime(path, Files.getLastModifiedTime(backup.resolve(key)));
+                } else {
+                    Files.deleteIfExists(path);
+                    deleteEmptyParents(path.getParent());
+                }
+                restored++;
+            }
+            List<String> changes = findUnrecordedChanges();
+            if (!changes.isEmpty())
+                throw new IllegalStateException("Could not restore " + changes);
+            return restored;
+        } finally {
+            deleteBackup(backup);
+        }
+    }
+
+    /**
+     * Compares the whole directory with the snapshot, to find the files modified without being recorded, e.g. by an
+     * external tool; this reads every file, so it is meant for checks rather than for the restore
+     *
+     * @return the paths, relative to the root, of the files modified, created or deleted since the snapshot and not
+     * recorded as written
+     * @throws Exception if a file can't be read
+     */
+    public List<String> findUnrecordedChanges() throws Exception {
+        Set<String> changed = ConcurrentHashMap.newKeySet();
+        List<String> keys = listFiles();
+        TransformationEngine.run("DecompiledSnapshot check", keys, key -> {
+            Long expected = hashes.get(key);
+            if (expected == null ? !created.contains(key) : !originals.containsKey(key) && expected != hash(root.resolve(key)))
+                changed.add(key);
+        });
+        for (String key : hashes.keySet()) {
+            if (!Files.exists(root.resolve(key)))
+                changed.add(key);
+        }
+        return changed.stream().sorted().toList();
+    }
+
+    /**
+     * @return the paths of the files of the decompiled APK relative to the root, excluding the output of the builds
+     */
+    private List<String> listFiles() throws IOException {
+        try (Stream<Path> stream = Files.walk(root)) {
+            return stream.filter(Files::isRegularFile)
+                    .map(path -> root.relativize(path).toString())
+                    .filter(key -> !SmaliWorkspace.isExcluded(key))
+                    .toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Deletes the directories left empty by the deletion of the created files, up to the first one that existed when
+     * the snapshot was taken
+     */
+    private void deleteEmptyParents(Path dir) throws IOException {
+        while (dir != null && dir.startsWith(root) && !dir.equals(root)
+                && !directories.contains(root.relativize(dir).toString())) {
+            try (Stream<Path> entries = Files.list(dir)) {
+                if (entries.findAny().isPresent())
+                    return;
+            } catch (NoSuchFileException e) {
+                dir = dir.getParent();
+                continue;
+            }
+            Files.delete(dir);
+            dir = dir.getParent();
+        }
+    }
+
+    private static void deleteBackup(Path backup) throws IOException {
+        try (Stream<Path> stream = Files.walk(backup)) {
+            for (Path path : stream.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(path);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static long hash(Path path) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(Files.readAllBytes(path));
+        return crc.getValue();
+    }
+}
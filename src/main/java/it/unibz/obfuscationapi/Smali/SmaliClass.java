@@ -0,0 +1,148 @@
+package it.unibz.obfuscationapi.Smali;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static it.unibz.obfuscationapi.Utility.Utilities.LS;
+
+/**
+ * Structured representation of a smali file: the class declaration, the fields and the methods<br>
+ * Parsing a file only looks at the first characters of each line to find the directives delimiting the methods, the
+ * bodies of the methods are split in instructions only when a transformation requests them. Everything outside the
+ * methods (header, fields, annotations, comments) is kept as it was read, so that the file is printed back byte for
+ * byte except for the methods that were modified
+ */
+public class SmaliClass {
+    private final String source;
+    private String declaration = "";
+    private String superClass;
+    private String sourceFile;
+    private final ArrayList<SmaliField> fields = new ArrayList<>();
+    private final ArrayList<SmaliMethod> methods = new ArrayList<>();
+    // Region of the source occupied by each method, the text between the end of a method and the beginning of the next
+    // one is printed as it was read
+    private final ArrayList<Integer> methodStarts = new ArrayList<>();
+    private final ArrayList<Integer> methodEnds = new ArrayList<>();
+
+    private SmaliClass(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Parses the contents of a smali file
+     *
+     * @param source contents of the file, with the lines separated by
+     *               {@link it.unibz.obfuscationapi.Utility.Utilities#LS LS}
+     * @return the parsed class
+     * @throws IllegalArgumentException if a method is not terminated by .end method
+     */
+    public static SmaliClass parse(String source) {
+        SmaliClass smaliClass = new SmaliClass(source);
+        int methodStart = -1;
+        int bodyStart = -1;
+        int lineStart = 0;
+        while (lineStart < source.length()) {
+            int lineEnd = source.indexOf(LS, lineStart);
+            int next = lineEnd == -1 ? source.length() : lineEnd + LS.length();
+            if (lineEnd == -1)
+                lineEnd = source.length();
+            int i = lineStart;
+            while (i < lineEnd && (source.charAt(i) == ' ' || source.charAt(i) == '\t'))
+                i++;
+            if (i < lineEnd && source.charAt(i) == '.') {
+                if (methodStart == -1) {
+                    if (source.startsWith(".method ", i)) {
+                        methodStart = lineStart;
+                        bodyStart = next;
+                    } else if (source.startsWith(".field ", i)) {
+                        smaliClass.fields.add(new SmaliField(source.substring(lineStart, lineEnd)));
+                    } else if (source.startsWith(".class ", i)) {
+                        smaliClass.declaration = source.substring(lineStart, lineEnd).strip();
+                    } else if (source.startsWith(".super ", i)) {
+                        smaliClass.superClass = source.substring(i + ".super ".length(), lineEnd).strip();
+                    } else if (source.startsWith(".source ", i)) {
+                        String quoted = source.substring(i + ".source ".length(), lineEnd).strip();
+                        smaliClass.sourceFile = quoted.length() >= 2 ? quoted.substring(1, quoted.length() - 1) : quoted;
+                    }
+                } else if (source.startsWith(".end method", i)) {
+                    smaliClass.methods.add(new SmaliMethod(source, methodStart, bodyStart, lineStart, next));
+                    smaliClass.methodStarts.add(methodStart);
+                    smaliClass.methodEnds.add(next);
+                    methodStart = -1;
+                }
+            }
+            lineStart = next;
+        }
+        if (methodStart != -1)
+            throw new IllegalArgumentException("Method not terminated: " + source.substring(methodStart, bodyStart).strip());
+        return smaliClass;
+    }
+
+    /**
+     * @return the name of the class, e.g. Lcom/example/MainActivity;
+     */
+    public String getName() {
+        return declaration.substring(declaration.lastIndexOf(' ') + 1);
+    }
+
+    public List<String> getAccessFlags() {
+        String[] tokens = declaration.split(" +");
+        if (tokens.length < 2)
+            return List.of();
+        return List.copyOf(Arrays.asList(tokens).subList(1, tokens.length - 1));
+    }
+
+    public boolean isPublic() {
+        return getAccessFlags().contains("public");
+    }
+
+    public String getSuperClass() {
+        return superClass;
+    }
+
+    /**
+     * @return the name of the source file declared by the .source directive, or null if the class has none
+     */
+    public String getSourceFile() {
+        return sourceFile;
+    }
+
+    public List<SmaliField> getFields() {
+        return Collections.unmodifiableList(fields);
+    }
+
+    public List<SmaliMethod> getMethods() {
+        return Collections.unmodifiableList(methods);
+    }
+
+    /**
+     * @return true if at least one method was modified since the class was parsed
+     */
+    public boolean isModified() {
+        for (SmaliMethod method : methods) {
+            if (method.isModified())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the contents of the smali file, with the modified methods printed from their instructions
+     */
+    @Override
+    public String toString() {
+        if (!isModified())
+            return source;
+        StringBuilder sb = new StringBuilder(source.length() + (source.length() >> 2));
+        int previousEnd = 0;
+        for (int i = 0; i < methods.size(); i++) {
+            sb.append(source, previousEnd, methodStarts.get(i));
+            methods.get(i).appendTo(sb);
+            previousEnd = methodEnds.get(i);
+        }
+        sb.append(source, previousEnd, source.length());
+        return sb.toString();
+    }
+}
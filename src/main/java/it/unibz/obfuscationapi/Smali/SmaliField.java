@@ -0,0 +1,67 @@
+package it.unibz.obfuscationapi.Smali;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Field declared in a smali class, parsed from its .field directive
+ */
+public class SmaliField {
+    private final String declaration;
+    private final List<String> accessFlags;
+    private final String name;
+    private final String type;
+
+    /**
+     * @param declaration line of the .field directive, e.g. ".field private static volatile counter:I = 0x0"
+     */
+    SmaliField(String declaration) {
+        this.declaration = declaration;
+        String trimmed = declaration.strip();
+        int initialValue = trimmed.indexOf(" = ");
+        if (initialValue != -1)
+            trimmed = trimmed.substring(0, initialValue);
+        String[] tokens = trimmed.split(" +");
+        String nameAndType = tokens[tokens.length - 1];
+        int colon = nameAndType.indexOf(':');
+        this.name = colon == -1 ? nameAndType : nameAndType.substring(0, colon);
+        this.type = colon == -1 ? "" : nameAndType.substring(colon + 1);
+        this.accessFlags = List.copyOf(Arrays.asList(tokens).subList(1, tokens.length - 1));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public List<String> getAccessFlags() {
+        return accessFlags;
+    }
+
+    public boolean isPublic() {
+        return accessFlags.contains("public");
+    }
+
+    public boolean isPrivate() {
+        return accessFlags.contains("private");
+    }
+
+    public boolean isStatic() {
+        return accessFlags.contains("static");
+    }
+
+    public boolean isVolatile() {
+        return accessFlags.contains("volatile");
+    }
+
+    /**
+     * @return the line of the .field directive, without the line separator
+     */
+    @Override
+    public String toString() {
+        return declaration;
+    }
+}
@@ -0,0 +1,117 @@
+package it.unibz.obfuscationapi.Smali;
+
+/**
+ * Single line of the body of a smali method: an instruction, a directive (e.g. .locals, .line), a label, a comment or
+ * a blank line<br>
+ * The line is kept exactly as it appears in the file, without the line separator, so that it can be printed back
+ * unchanged
+ */
+public class SmaliInstruction {
+    private final String line;
+    private final String opcode;
+    private final String operands;
+
+    /**
+     * @param line line of the method body, without the line separator
+     */
+    public SmaliInstruction(String line) {
+        this.line = line;
+        String trimmed = line.strip();
+        int space = trimmed.indexOf(' ');
+        if (space == -1) {
+            opcode = trimmed;
+            operands = "";
+        } else {
+            opcode = trimmed.substring(0, space);
+            operands = trimmed.substring(space + 1).strip();
+        }
+    }
+
+    /**
+     * @return the opcode of the instruction (e.g. invoke-virtual), the name of the directive (e.g. .locals), the label
+     * (e.g. :cond_0), # for comments or an empty string for blank lines
+     */
+    public String getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * @return everything that follows the opcode on the line, e.g. the registers and the reference of an invocation
+     */
+    public String getOperands() {
+        return operands;
+    }
+
+    /**
+     * @return the whitespace preceding the opcode on the line
+     */
+    public String getIndentation() {
+        return line.substring(0, line.length() - line.stripLeading().length());
+    }
+
+    public boolean isBlank() {
+        return opcode.isEmpty();
+    }
+
+    public boolean isLabel() {
+        return opcode.startsWith(":");
+    }
+
+    public boolean isDirective() {
+        return opcode.startsWith(".");
+    }
+
+    public boolean isComment() {
+        return opcode.startsWith("#");
+    }
+
+    /**
+     * @return true if the line is a method invocation, including the range invocations
+     */
+    public boolean isInvoke() {
+        return opcode.startsWith("invoke-");
+    }
+
+    /**
+     * Returns the registers listed between braces, as in the invocations and in the filled-new-array instructions
+     *
+     * @return the string between the braces (e.g. "p0, v1" or "v0 .. v5"), or null if the instruction has none
+     */
+    public String getRegisterList() {
+        if (!operands.startsWith("{"))
+            return null;
+        int end = operands.indexOf('}');
+        return end == -1 ? null : operands.substring(1, end);
+    }
+
+    /**
+     * Returns the reference following the registers, e.g. the method invoked by an invocation
+     * (Lcom/example/Class;->method(I)V) or the type created by a new-instance
+     *
+     * @return the reference, or null if the instruction has no operands
+     */
+    public String getReference() {
+        if (operands.startsWith("{")) {
+            int end = operands.indexOf("}, ");
+            return end == -1 ? null : operands.substring(end + 3);
+        }
+        int comma = operands.lastIndexOf(", ");
+        return comma == -1 ? null : operands.substring(comma + 2);
+    }
+
+    /**
+     * @return the last operand of the instruction, e.g. the destination register of a move-result
+     */
+    public String getLastOperand() {
+        int comma = operands.lastIndexOf(',');
+        return operands.substring(comma + 1).strip();
+    }
+
+    /**
+     * @return the line as it appears in the file, without the line separator
+     */
+    @Override
+    public String toString() {
+        return line;
+    }
+}
@@ -0,0 +1,247 @@
+package it.unibz.obfuscationapi.Smali;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static it.unibz.obfuscationapi.Utility.Utilities.LS;
+
+/**
+ * Method declared in a smali class<br>
+ * The body of the method is kept as a region of the contents of the file and is split in
+ * {@link SmaliInstruction instructions} only the first time they are requested; as long as the body is not modified it
+ * is printed back exactly as it was read
+ */
+public class SmaliMethod {
+    private final String declaration;
+    private final String source;
+    private final int bodyStart;
+    private final int bodyEnd;
+    private final int end;
+    private ArrayList<SmaliInstruction> instructions;
+    private boolean modified;
+
+    /**
+     * @param source           contents of the file declaring the method
+     * @param declarationStart index of the .method directive
+     * @param bodyStart        index of the first line after the .method directive
+     * @param bodyEnd          index of the .end method line
+     * @param end              index following the .end method line and its line separator
+     */
+    SmaliMethod(String source, int declarationStart, int bodyStart, int bodyEnd, int end) {
+        this.source = source;
+        this.declaration = source.substring(declarationStart, bodyStart - LS.length());
+        this.bodyStart = bodyStart;
+        this.bodyEnd = bodyEnd;
+        this.end = end;
+    }
+
+    /**
+     * @return the line of the .method directive, without the line separator
+     */
+    public String getDeclaration() {
+        return declaration;
+    }
+
+    /**
+     * @return the name of the method, e.g. onCreate
+     */
+    public String getName() {
+        String signature = getSignature();
+        return signature.substring(0, signature.indexOf('('));
+    }
+
+    /**
+     * @return the name of the method followed by its parameters and return type, e.g. onCreate(Landroid/os/Bundle;)V
+     */
+    public String getSignature() {
+        return declaration.substring(declaration.lastIndexOf(' ') + 1);
+    }
+
+    public List<String> getAccessFlags() {
+        String[] tokens = declaration.strip().split(" +");
+        return List.copyOf(Arrays.asList(tokens).subList(1, tokens.length - 1));
+    }
+
+    public boolean isAbstract() {
+        return getAccessFlags().contains("abstract");
+    }
+
+    public boolean isNative() {
+        return getAccessFlags().contains("native");
+    }
+
+    public boolean isStatic() {
+        return getAccessFlags().contains("static");
+    }
+
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Returns the number declared by the .locals directive, reading it directly from the body if the instructions were
+     * not parsed yet
+     *
+     * @return the number of local registers, or -1 if the method has no .locals directive
+     */
+    public int getLocals() {
+        if (instructions != null) {
+            int index = indexOfLocals();
+            return index == -1 ? -1 : Integer.parseInt(instructions.get(index).getOperands());
+        }
+        int lineStart = bodyStart;
+        while (lineStart < bodyEnd) {
+            int lineEnd = source.indexOf(LS, lineStart);
+            if (lineEnd == -1 || lineEnd > bodyEnd)
+                lineEnd = bodyEnd;
+            int i = lineStart;
+            while (i < lineEnd && Character.isWhitespace(source.charAt(i)))
+                i++;
+            if (source.startsWith(".locals ", i))
+                return Integer.parseInt(source.substring(i + ".locals ".length(), lineEnd).strip());
+            lineStart = lineEnd + LS.length();
+        }
+        return -1;
+    }
+
+    /**
+     * Changes the number declared by the .locals directive
+     *
+     * @param locals the new number of local registers
+     * @throws IllegalStateException if the method has no .locals directive
+     */
+    public void setLocals(int locals) {
+        int index = indexOfLocals();
+        if (index == -1)
+            throw new IllegalStateException(declaration + " has no .locals directive");
+        SmaliInstruction directive = instructions.get(index);
+        instructions.set(index, new SmaliInstruction(directive.getIndentation() + ".locals " + locals));
+        modified = true;
+    }
+
+    /**
+     * @return the index of the .locals directive among the instructions, or -1 if the method has none
+     */
+    public int indexOfLocals() {
+        List<SmaliInstruction> lines = parseInstructions();
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).getOpcode().equals(".locals"))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the lines of the body of the method, parsed the first time they are requested
+     */
+    public List<SmaliInstruction> getInstructions() {
+        return Collections.unmodifiableList(parseInstructions());
+    }
+
+    /**
+     * Inserts some code before the instruction at the given index
+     *
+     * @param index index of the instruction, or the number of instructions to append the code at the end of the body
+     * @param code  lines of code to insert, separated by {@link it.unibz.obfuscationapi.Utility.Utilities#LS LS}
+     */
+    public void insert(int index, String code) {
+        parseInstructions().addAll(index, split(code));
+        modified = true;
+    }
+
+    /**
+     * Replaces a range of instructions with some code
+     *
+     * @param from index of the first instruction to replace
+     * @param to   index following the last instruction to replace
+     * @param code lines of code to insert in place of the instructions
+     */
+    public void replace(int from, int to, String code) {
+        List<SmaliInstruction> lines = parseInstructions();
+        lines.subList(from, to).clear();
+        lines.addAll(from, split(code));
+        modified = true;
+    }
+
+    /**
+     * Appends some code at the end of the body, right before the .end method line
+     *
+     * @param code lines of code to append
+     */
+    public void append(String code) {
+        insert(parseInstructions().size(), code);
+    }
+
+    /**
+     * @return the body of the method, from the line following the .method directive to the line preceding .end method
+     */
+    public String getBody() {
+        if (!modified)
+            return source.substring(bodyStart, bodyEnd);
+        StringBuilder sb = new StringBuilder();
+        for (SmaliInstruction instruction : instructions)
+            sb.append(instruction).append(LS);
+        return sb.toString();
+    }
+
+    /**
+     * Replaces the whole body of the method
+     *
+     * @param body lines of the new body
+     */
+    public void setBody(String body) {
+        instructions = split(body);
+        modified = true;
+    }
+
+    private ArrayList<SmaliInstruction> parseInstructions() {
+        if (instructions == null)
+            instructions = split(source, bodyStart, bodyEnd);
+        return instructions;
+    }
+
+    private static ArrayList<SmaliInstruction> split(String code) {
+        return split(code, 0, code.length());
+    }
+
+    /**
+     * Splits a region of text in lines, a separator at the end of the region does not start a new line
+     */
+    private static ArrayList<SmaliInstruction> split(String text, int from, int to) {
+        ArrayList<SmaliInstruction> lines = new ArrayList<>();
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = text.indexOf(LS, lineStart);
+            if (lineEnd == -1 || lineEnd > to)
+                lineEnd = to;
+            lines.add(new SmaliInstruction(text.substring(lineStart, lineEnd)));
+            lineStart = lineEnd + LS.length();
+        }
+        return lines;
+    }
+
+    /**
+     * Appends the method, from the .method directive to the .end method line included, to a StringBuilder
+     *
+     * @param sb StringBuilder the method is appended to
+     */
+    void appendTo(StringBuilder sb) {
+        sb.append(declaration).append(LS);
+        if (modified) {
+            for (SmaliInstruction instruction : instructions)
+                sb.append(instruction).append(LS);
+        } else {
+            sb.append(source, bodyStart, bodyEnd);
+        }
+        sb.append(source, bodyEnd, end);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,354 @@
+package it.unibz.obfuscationapi.Smali;
+
+import it.unibz.obfuscationapi.Transformation.TransformationEngine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static it.unibz.obfuscationapi.Utility.Utilities.CHAR_ENCODING;
+import static it.unibz.obfuscationapi.Utility.Utilities.readFile;
+
+/**
+ * Class that keeps in memory the files of a decompiled APK while they are transformed<br>
+ * Files are loaded lazily the first time they are read and their original contents are kept for the whole life of the
+ * workspace, so that every transformation applied to the APK reads each file from disk at most once. The contents
+ * written by the transformations are kept separately, marking the files as dirty, and are written to disk only when
+ * {@link SmaliWorkspace#flush() flush} is called, before the APK is rebuilt; {@link SmaliWorkspace#reset() reset} then
+ * discards them so that the next transformation starts again from the original contents<br>
+ * Multiple variants can be transformed at the same time on {@link SmaliWorkspace#fork() forks} of the workspace, each
+ * one then materialized in its own working directory with {@link SmaliWorkspace#checkout(Path) checkout}, so that the
+ * decompiled directory itself is never modified
+ */
+public class SmaliWorkspace {
+    // Directories of the decompiled APK that are not part of the sources and are not copied in the working directories
+    private static final Set<String> EXCLUDED_DIRS = Set.of("dist", "build", ".git");
+    // Files that apktool rewrites in place while building, copied rather than linked in the working directories
+    private static final Set<String> REWRITTEN_IN_PLACE = Set.of("AndroidManifest.xml", "AndroidManifest.xml.orig",
+            Paths.get("res", "xml", "network_security_config.xml").toString());
+    private final Path root;
+    private final Path canonicalRoot;
+    private final ConcurrentHashMap<String, String> originals;
+    private final ConcurrentHashMap<String, String> dirty = new ConcurrentHashMap<>();
+    // Snapshot of the decompiled directory recording the files written by flush, if any
+    private DecompiledSnapshot snapshot;
+
+    /**
+     * Creates a workspace whose files are identified by their absolute path
+     */
+    public SmaliWorkspace() {
+        this.root = null;
+        this.canonicalRoot = null;
+        this.originals = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Creates a workspace whose files are identified by their path relative to the root directory
+     *
+     * @param root path of the directory of the decompiled APK
+     */
+    public SmaliWorkspace(String root) {
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+        Path canonical;
+        try {
+            canonical = this.root.toRealPath();
+        } catch (IOException e) {
+            canonical = this.root;
+        }
+        this.canonicalRoot = canonical;
+        this.originals = new ConcurrentHashMap<>();
+    }
+
+    private SmaliWorkspace(SmaliWorkspace parent) {
+        this.root = parent.root;
+        this.canonicalRoot = parent.canonicalRoot;
+        this.originals = parent.originals;
+        this.dirty.putAll(parent.dirty);
+        this.snapshot = parent.snapshot;
+    }
+
+    /**
+     * Sets the snapshot of the decompiled directory, so that the files written by {@link SmaliWorkspace#flush() flush}
+     * can be restored
+     *
+     * @param snapshot snapshot of the root directory
+     */
+    public void setSnapshot(DecompiledSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Creates a workspace on the same directory that starts from the current state of this one and keeps its
+     * modifications separate; the original contents are shared, so a file is still read from disk only once across
+     * all the forks
+     *
+     * @return the new workspace
+     */
+    public SmaliWorkspace fork() {
+        return new SmaliWorkspace(this);
+    }
+
+    /**
+     * @param key path relative to the root of the decompiled APK
+     * @return true if the path is inside one of the directories that are not part of the sources of the APK, the
+     * output of the builds
+     */
+    static boolean isExcluded(String key) {
+        return EXCLUDED_DIRS.contains(Paths.get(key).getName(0).toString());
+    }
+
+    /**
+     * Returns the key identifying a file in the workspace, which is the path relative to the root, or the absolute path
+     * if the workspace has no root
+     * The files listed navigating the directories are identified by their canonical path, while others are built
+     * from the relative path of the decompiled APK, so both forms are mapped to the same key
+     *
+     * @param file path of the file
+     * @return the key of the file
+     */
+    public String key(String file) {
+        Path path = Paths.get(file).toAbsolutePath().normalize();
+        if (root == null)
+            return path.toString();
+        if (path.startsWith(root))
+            return root.relativize(path).toString();
+        if (path.startsWith(canonicalRoot))
+            return canonicalRoot.relativize(path).toString();
+        throw new IllegalArgumentException(file + " is not inside the workspace " + root);
+    }
+
+    /**
+     * @param key key of a file in the workspace
+     * @return the path of the file on disk
+     */
+    public Path resolve(String key) {
+        return root == null ? Paths.get(key) : root.resolve(key);
+    }
+
+    /**
+     * Returns the current contents of a file, loading it from disk if it was never read before
+     *
+     * @param file path of the file
+     * @return the contents of the file, with the line separators normalized to {@link
+     * it.unibz.obfuscationapi.Utility.Utilities#LS LS}
+     * @throws IOException if the file can't be read
+     */
+    public String read(String file) throws IOException {
+        String key = key(file);
+        String content = dirty.get(key);
+        if (content != null)
+            return content;
+        try {
+            return originals.computeIfAbsent(key, k -> {
+                try {
+                    return readFile(resolve(k));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Replaces the contents of a file, or creates it if it does not exist, marking it as dirty
+     *
+     * @param file    path of the file
+     * @param content new contents of the file
+     */
+    public void write(String file, String content) {
+        dirty.put(key(file), content);
+    }
+
+    /**
+     * @param file path of the file
+     * @return true if the file was created in the workspace or exists on disk
+     */
+    public boolean exists(String file) {
+        String key = key(file);
+        return dirty.containsKey(key) || originals.containsKey(key) || Files.exists(resolve(key));
+    }
+
+    /**
+     * @return the keys of the files modified or created since the last {@link SmaliWorkspace#reset() reset}
+     */
+    public Set<String> getDirtyFiles() {
+        return Set.copyOf(dirty.keySet());
+    }
+
+    /**
+     * Writes all dirty files to disk in a single batch, creating the missing directories
+     *
+     * @return the number of files written
+     * @throws Exception if a file can't be written
+     */
+    public int flush() throws Exception {
+        ArrayList<String> keys = new ArrayList<>(dirty.keySet());
+        TransformationEngine.run("SmaliWorkspace flush", keys, key -> {
+            if (snapshot != null)
+                snapshot.recordWrite(key);
+            replace(resolve(key), dirty.get(key).getBytes(Charset.forName(CHAR_ENCODING)));
+        });
+        return keys.size();
+    }
+
+    /**
+     * Creates a working directory with the current state of the workspace, from which the variant can be rebuilt
+     * without touching the decompiled directory<br>
+     * The files that were not modified are hard links to the ones of the decompiled directory, so the copy costs a
+     * directory entry per file, while the dirty files are written as new files; if the file system does not support
+     * hard links the files are copied. The files of the working directory must not be modified in place, as the
+     * changes would be visible through all the links: the files that apktool rewrites in place while building
+     * (AndroidManifest.xml, patched by ResXmlPatcher, its AndroidManifest.xml.orig copy and
+     * res/xml/network_security_config.xml) are therefore always copied
+     *
+     * @param target path of the working directory, which must not exist
+     * @return the absolute path of the working directory
+     * @throws Exception if the working directory can't be created
+     */
+    public Path checkout(Path target) throws Exception {
+        return checkout(target, false);
+    }
+
+    /**
+     * Creates a working directory with the current state of the workspace, as {@link SmaliWorkspace#checkout(Path)
+     * checkout}, optionally reusing the output of a previous build of the decompiled directory<br>
+     * apktool skips the assembly of a smali directory, and the compilation of the resources, when the files it built
+     * from them are newer than every file and directory they contain. The build directory is copied, keeping the
+     * modification times, and the directories of the working copy get the modification times of the original ones, so
+     * that only the smali directories and resources containing a file written by the transformations are built again
+     *
+     * @param target     path of the working directory, which must not exist
+     * @param reuseBuild true to copy the build directory of the decompiled APK, if it exists
+     * @return the absolute path of the working directory
+     * @throws Exception if the working directory can't be created
+     */
+    public Path checkout(Path target, boolean reuseBuild) throws Exception {
+        if (root == null)
+            throw new IllegalStateException("A workspace without a root directory can't be checked out");
+        Path dir = target.toAbsolutePath().normalize();
+        if (Files.exists(dir))
+            throw new IllegalArgumentException("The working directory " + dir + " already exists");
+        ArrayList<String> keys = new ArrayList<>();
+        ArrayList<String> dirs = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(root)) {
+            stream.filter(path -> !path.equals(root) && !isExcluded(root.relativize(path).toString()))
+                    .forEach(path -> {
+                        String key = root.relativize(path).toString();
+                        if (Files.isDirectory(path)) {
+                            try {
+                                Files.createDirectories(dir.resolve(key));
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                            dirs.add(key);
+                        } else {
+                            keys.add(key);
+                        }
+                    });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        // Files created by the transformations, which do not exist in the decompiled directory
+        HashSet<String> created = new HashSet<>(dirty.keySet());
+        keys.forEach(created::remove);
+        keys.addAll(created);
+        TransformationEngine.run("SmaliWorkspace checkout", keys, key -> {
+            Path path = dir.resolve(key);
+            String content = dirty.get(key);
+            if (content != null) {
+                Files.createDirectories(path.getParent());
+                Files.writeString(path, content);
+                return;
+            }
+            if (!REWRITTEN_IN_PLACE.contains(key)) {
+                try {
+                    Files.createLink(path, resolve(key));
+                    return;
+                } catch (IOException | UnsupportedOperationException e) {
+                    // Copied below
+                }
+            }
+            Files.copy(resolve(key), path, StandardCopyOption.COPY_ATTRIBUTES);
+        });
+        if (reuseBuild) {
+            Path build = root.resolve("build");
+            if (Files.isDirectory(build))
+                copyDirectory(build, dir.resolve("build"));
+            // Deepest directories first, as setting the time of a directory does not change the one of its parent
+            for (int i = dirs.size() - 1; i >= 0; i--)
+                Files.setLastModifiedTime(dir.resolve(dirs.get(i)), Files.getLastModifiedTime(resolve(dirs.get(i))));
+        }
+        return dir;
+    }
+
+    /**
+     * Copies a directory keeping the modification times of the files; the files are copied rather than linked, since
+     * apktool overwrites in place the ones it builds again
+     */
+    private static void copyDirectory(Path source, Path target) throws IOException {
+        try (Stream<Path> stream = Files.walk(source)) {
+            for (Path path : stream.toList()) {
+                Path copy = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path))
+                    Files.createDirectories(copy);
+                else
+                    Files.copy(path, copy, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+        }
+    }
+
+    /**
+     * Replaces a file through a temporary file, so that the working directories linking the previous version are not
+     * affected
+     */
+    static void replace(Path path, byte[] content) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, content);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Captures the current state of the workspace; the contents of the files are immutable strings, so the snapshot
+     * only copies the references to the modified files
+     *
+     * @return the contents of the files modified so far, by key
+     */
+    public Map<String, String> snapshot() {
+        return Map.copyOf(dirty);
+    }
+
+    /**
+     * Brings the workspace back to the state captured by a {@link SmaliWorkspace#snapshot() snapshot}
+     *
+     * @param snapshot state to restore
+     */
+    public void restore(Map<String, String> snapshot) {
+        dirty.clear();
+        dirty.putAll(snapshot);
+    }
+
+    /**
+     * Discards all modifications, so that the files are read again with their original contents
+     */
+    public void reset() {
+        dirty.clear();
+    }
+}
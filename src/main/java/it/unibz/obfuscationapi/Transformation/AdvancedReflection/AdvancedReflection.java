@@ -1,13 +1,18 @@
 package it.unibz.obfuscationapi.Transformation.AdvancedReflection;
 
 import it.unibz.obfuscationapi.Obfuscation.CommandExecution;
-import it.unibz.obfuscationapi.Transformation.Transformation;
-
-import java.io.*;
-import java.nio.file.Files;
+import it.unibz.obfuscationapi.Smali.SmaliClass;
+import it.unibz.obfuscationapi.Smali.SmaliInstruction;
+import it.unibz.obfuscationapi.Smali.SmaliMethod;
+import it.unibz.obfuscationapi.Transformation.DexBudget;
+import it.unibz.obfuscationapi.Transformation.HotCodeFilter;
+import it.unibz.obfuscationapi.Transformation.SmaliTransformation;
+
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -16,12 +21,62 @@ import static it.unibz.obfuscationapi.Utility.Utilities.*;
 /**
  * Class that applies the advanced reflection transformation
  */
-public class AdvancedReflection implements Transformation {
+public class AdvancedReflection extends SmaliTransformation {
     private final String path;
     private final ArrayList<String> dirsToExclude;
-    private int instrLength = 0;
-    private final String pathToDangerousApi = Paths.get("it", "unibz", "obfuscationapi", "dangerous_api.txt").toString();
+    // Methods added to the dex file by the AdvancedApiReflection class and the shards: the ones the class declares
+    // and the ones referenced by the class and the shards
+    private final static int REFLECTION_CLASS_METHODS = 16;
+    // Methods added by the method handles: the handle methods of the class and of each shard, and the ones referenced
+    // by them and by the invocations
+    private final static int HANDLE_CLASS_METHODS = 4;
+    // Methods declared by each shard (<clinit>, get and resolve)
+    private final static int SHARD_METHODS = 3;
+    // Method handles, and the invoke-polymorphic instruction, are supported from Android 8.0
+    private final static int METHOD_HANDLES_MIN_SDK = 26;
+    // Registers that can be passed to a method handle by invoke-polymorphic, besides the handle itself
+    private final static int METHOD_HANDLE_REGISTERS = 4;
+    // Methods registered by each shard: the code resolving a method is at most 67 code units long, so the resolve
+    // method of a shard stays far below the limit of 65535 code units of a method
+    private final static int METHODS_PER_SHARD = 256;
+    private InvocationMode invocationMode = InvocationMode.REFLECTION;
+    // Whether the method handles are used by this execution, i.e. the mode requires them and the APK supports them
+    private boolean methodHandles;
+    private DexBudget budget;
+    private String budgetDir;
+    // Methods reserved for the AdvancedApiReflection class by this execution, 0 if the class already existed
+    private int classMethods;
+    // Number of the next method invoked via reflection, the first one of a new shard is reserved together with the
+    // methods of the shard
+    private int methodNum;
+    // Number of the first method of this execution, shards registered by a previous execution are left untouched
+    private int firstMethodNum;
+    // The code resolving each method in its shard, sorted by the number of the method, because the number gives the
+    // case of the switch of the shard resolving it and the index of the array caching it
+    private final ConcurrentSkipListMap<Integer, String> reflectionCodeByMethod = new ConcurrentSkipListMap<>();
+    private DangerousApiIndex dangerousApi;
     private final String reflectionClass = Paths.get("it", "unibz", "obfuscationapi", "AdvancedReflection", "AdvancedApiReflectionCode.txt").toString();
+    private final String shardClass = Paths.get("it", "unibz", "obfuscationapi", "AdvancedReflection", "AdvancedApiReflectionShardCode.txt").toString();
+    private final String handleCode = Paths.get("it", "unibz", "obfuscationapi", "AdvancedReflection", "AdvancedApiReflectionHandleCode.txt").toString();
+    private final String shardHandleCode = Paths.get("it", "unibz", "obfuscationapi", "AdvancedReflection", "AdvancedApiReflectionShardHandleCode.txt").toString();
+    private final static Pattern MIN_SDK = Pattern.compile("minSdkVersion:\\s*'?(\\d+)");
+
+    /**
+     * How the dangerous api calls are performed once replaced
+     */
+    public enum InvocationMode {
+        /**
+         * Through Method.invoke, passing the arguments in an array and boxing the primitive ones
+         */
+        REFLECTION,
+        /**
+         * Through a MethodHandle obtained from the Method and cached, invoked with invoke-polymorphic with the same
+         * registers and signature of the original invocation, so the arguments are neither copied in an array nor
+         * boxed, and the result is not unboxed. Only used if the minimum SDK of the APK is at least 26; the invocations
+         * passing more than 4 registers are performed via reflection
+         */
+        METHOD_HANDLES
+    }
 
     private final static Map<String, String> types = Map.of(
             "I", "Ljava/lang/Integer;",
@@ -82,85 +137,234 @@ public class AdvancedReflection implements Transformation {
     }
 
     /**
-     * Applies the AdvancedReflection transformation.
-     * The method finds amongst all files under the path directory the calls made to methods classified as dangerous api
-     * calls. It then substitutes these calls using reflection, inserting the instructions needed to perform the call
-     * indirectly in a file called AdvancedApiReflection.smali
+     * @param invocationMode how the dangerous api calls are performed, {@link InvocationMode#REFLECTION REFLECTION}
+     *                       by default
+     */
+    public void setInvocationMode(InvocationMode invocationMode) {
+        this.invocationMode = invocationMode;
+    }
+
+    /**
+     * Resets the state of a previous execution and gets the index of the dangerous api calls, loaded by the first
+     * execution. If the APK already contains the AdvancedApiReflection class, the numbering of the methods continues
+     * from the first shard not written yet
+     */
+    @Override
+    protected void beforeProcessing() throws Exception {
+        methodHandles = invocationMode == InvocationMode.METHOD_HANDLES;
+        if (methodHandles && getMinSdk() < METHOD_HANDLES_MIN_SDK) {
+            System.out.println("The minimum SDK of the APK does not support method handles, the calls are performed via reflection");
+            methodHandles = false;
+        }
+        budget = getDexBudget() != null ? getDexBudget() : new DexBudget(Map.of(path, Integer.MAX_VALUE));
+        budgetDir = budget.findDir(path);
+        // Without room for the AdvancedApiReflection class no invocation is replaced
+        classMethods = fileExists(getApiReflectionClassFile()) ? 0
+                : REFLECTION_CLASS_METHODS + (methodHandles ? HANDLE_CLASS_METHODS : 0);
+        if (classMethods > 0 && !budget.reserveMethods(budgetDir, classMethods)) {
+            budgetDir = null;
+            classMethods = 0;
+        }
+        int shards = 0;
+        while (fileExists(getShardClassFile(shards)))
+            shards++;
+        firstMethodNum = shards * METHODS_PER_SHARD;
+        methodNum = firstMethodNum;
+        reflectionCodeByMethod.clear();
+        dangerousApi = DangerousApiIndex.getInstance();
+    }
+
+    @Override
+    protected Stage getStage() {
+        return Stage.INDIRECTION;
+    }
+
+    @Override
+    protected ArrayList<String> getFiles() throws IOException {
+        return navigateDirectoryContents(path, dirsToExclude);
+    }
+
+    /**
+     * Applies the AdvancedReflection transformation to a file.
+     * The method finds amongst all methods of the file the calls made to methods classified as dangerous api calls. It
+     * then substitutes these calls using reflection, inserting the instructions needed to perform the call indirectly
+     * in the shards of the AdvancedApiReflection class, which are written once all files have been processed; with
+     * {@link InvocationMode#METHOD_HANDLES METHOD_HANDLES} the call is performed through the method handle of the
+     * method instead, whenever its registers fit in an invoke-polymorphic instruction. The hot
+     * methods of the {@link HotCodeFilter profile} are skipped, together with the bodies of the loops if they are
+     * skipped, as an invocation via reflection is much slower than a direct one
      *
-     * @throws Exception
+     * @param file     path of the file to modify
+     * @param fileCopy contents of the file
+     * @return the contents of the file with the dangerous api calls replaced
      */
     @Override
-    public void obfuscate() throws Exception {
-        int methodNum = 0;
-        StringBuilder smaliReflectionClassCode = new StringBuilder();
-        ArrayList<String> files = navigateDirectoryContents(path, dirsToExclude);
-        ArrayList<String> dangerousApi = new ArrayList<>(Arrays.asList(getStringBufferFromFile(pathToDangerousApi).toString().split(LS)));
-        for (String file : files) {
-            // We cannot overrun the limit of instruction inserted in the AdvancedApiReflection.smali file
-            int instrLimit = 60000;
-            if (instrLength >= instrLimit)
-                break;
-            StringBuffer fileCopy = getStringBufferFromFile(file);
-            StringBuilder newFile = new StringBuilder();
-            StringBuilder newMethodBody;
-
-            Pattern pattern = Pattern.compile("(\\.method .*" + LS + ")(?s)(.*?)(\\.end method)");
-            Matcher matcher = pattern.matcher(fileCopy.toString());
-
-            if (!matcher.find())
+    protected String process(String file, String fileCopy) {
+        if (budgetDir == null)
+            return fileCopy;
+        // Files that don't reference any class declaring dangerous api calls are not parsed
+        if (!dangerousApi.mayInvokeDangerousApi(fileCopy))
+            return fileCopy;
+        SmaliClass smaliClass = SmaliClass.parse(fileCopy);
+        List<SmaliMethod> methods = smaliClass.getMethods();
+
+        // The first method of the class is left untouched, as it always was
+        for (SmaliMethod method : methods.subList(Math.min(1, methods.size()), methods.size())) {
+            int locals = method.getLocals();
+            if (locals == -1 || HotCodeFilter.isHot(smaliClass.getName(), method.getSignature()))
                 continue;
-
-            while (matcher.find()) {
-                newMethodBody = new StringBuilder();
-                String methodBody = matcher.group(2);
-                Pattern pattern1 = Pattern.compile("\\.locals ([0-9]+)");
-                Matcher matcher1 = pattern1.matcher(methodBody);
-                int locals = Integer.parseInt(matcher1.find() ? matcher1.group(1) : "16");
-                pattern1 = Pattern.compile("invoke-(virtual|static) \\{(.*)}, ((.*;)->(.*)\\((.*)\\)(V)?(.*)?)(\\s+move-result(?:.*)? ([vp0-9]+))?");
-                matcher1 = pattern1.matcher(methodBody);
-                while (matcher1.find()) {
-                    String methodParameters = matcher1.group(6);
-                    ArrayList<String> parameters = splitParameters(methodParameters);
-                    if ((locals + calculateRegisters(parameters)) > 11 || !dangerousApi.contains(matcher1.group(3)))
-                        continue;
-
-                    String newMoveResult = "";
-                    if (matcher1.group(7) == null && matcher1.group(9) != null)
-                        newMoveResult = getNewMoveResult(matcher1);
-                    String smaliCode = createReflectionMethod(methodNum, locals, matcher1.group(1).equals("virtual"), matcher1.group(2), parameters);
-                    smaliCode += newMoveResult;
-                    matcher1.appendReplacement(newMethodBody, Matcher.quoteReplacement(smaliCode));
-                    locals += 4;
-                    methodNum++;
-                    smaliReflectionClassCode.append(addReflectionCode(matcher1.group(4), matcher1.group(5), parameters));
+            int originalLocals = locals;
+            List<SmaliInstruction> instructions = method.getInstructions();
+            boolean[] loops = HotCodeFilter.isSkippingLoops() ? HotCodeFilter.findLoops(instructions) : null;
+            int originalSize = instructions.size();
+            for (int i = 0; i < instructions.size(); i++) {
+                SmaliInstruction invoke = instructions.get(i);
+                String invocationType = invoke.getOpcode();
+                if (!invocationType.equals("invoke-virtual") && !invocationType.equals("invoke-static"))
+                    continue;
+                // The instructions replaced so far shifted the following ones
+                if (loops != null && loops[i - (instructions.size() - originalSize)])
+                    continue;
+                String registers = invoke.getRegisterList();
+                String target = invoke.getReference();
+                if (registers == null || target == null)
+                    continue;
+                int arrow = target.indexOf(";->");
+                int open = target.indexOf('(', arrow);
+                int close = target.indexOf(')', open);
+                if (arrow == -1 || open == -1 || close == -1)
+                    continue;
+                ArrayList<String> parameters = splitParameters(target.substring(open + 1, close));
+                if ((locals + calculateRegisters(parameters)) > 11 || !dangerousApi.contains(target))
+                    continue;
+                int num = nextMethodNum();
+                if (num == -1)
+                    continue;
+
+                boolean virtual = invocationType.equals("invoke-virtual");
+                if (methodHandles && !registers.contains("..") && countRegisters(registers) <= METHOD_HANDLE_REGISTERS) {
+                    // The method handle has the exact type of the invocation, with the object as first parameter if
+                    // the method is virtual, so the move-result following it is left untouched
+                    String type = "(" + (virtual ? target.substring(0, arrow + 1) : "") + target.substring(open + 1);
+                    int size = instructions.size();
+                    method.replace(i, i + 1, invoke.getIndentation() + createMethodHandleInvocation(num, locals, registers, type));
+                    i += instructions.size() - size;
+                    locals += 1;
+                    reflectionCodeByMethod.put(num, addReflectionCode(num % METHODS_PER_SHARD, target.substring(0, arrow + 1),
+                            target.substring(arrow + 3, open), parameters));
+                    continue;
                 }
-                matcher1.appendTail(newMethodBody);
-                String temp = newMethodBody.toString();
-                pattern1 = Pattern.compile("(\\.locals )([0-9]+)");
-                matcher1 = pattern1.matcher(temp);
-                if (matcher1.find()) {
-                    temp = matcher1.replaceFirst(matcher1.group(1) + locals);
+
+                String returnType = target.substring(close + 1);
+                // The move-result following the invocation, separated from it only by blank lines, is replaced too
+                int last = i;
+                SmaliInstruction moveResult = null;
+                int next = i + 1;
+                while (next < instructions.size() && instructions.get(next).isBlank())
+                    next++;
+                if (next < instructions.size() && instructions.get(next).getOpcode().startsWith("move-result")) {
+                    moveResult = instructions.get(next);
+                    last = next;
                 }
-                String replacement = matcher.group(1) + temp + matcher.group(3);
-                matcher.appendReplacement(newFile, Matcher.quoteReplacement(replacement));
+
+                String newMoveResult = "";
+                if (!returnType.equals("V") && moveResult != null)
+                    newMoveResult = getNewMoveResult(returnType, moveResult);
+                String smaliCode = createReflectionMethod(num, locals, virtual, registers, parameters);
+                smaliCode += newMoveResult;
+                int size = instructions.size();
+                method.replace(i, last + 1, invoke.getIndentation() + smaliCode);
+                // The new instructions are not inspected again
+                i += instructions.size() - size + last - i;
+                locals += 4;
+                reflectionCodeByMethod.put(num, addReflectionCode(num % METHODS_PER_SHARD, target.substring(0, arrow + 1),
+                        target.substring(arrow + 3, open), parameters));
             }
-            matcher.appendTail(newFile);
-
-            File f = new File(file);
-            FileOutputStream fos = new FileOutputStream(f);
-            OutputStreamWriter out = new OutputStreamWriter(fos, CHAR_ENCODING);
-            out.append(newFile.toString());
-            out.close();
-            fos.close();
+            if (locals != originalLocals)
+                method.setLocals(locals);
         }
-        String apiReflectionFile = createApiReflectionClassFile();
-        StringBuffer apiReflectionCode = getStringBufferFromFile(apiReflectionFile);
-        File f = new File(apiReflectionFile);
-        FileOutputStream fos = new FileOutputStream(f);
-        OutputStreamWriter out = new OutputStreamWriter(fos, CHAR_ENCODING);
-        out.append(apiReflectionCode.toString().replace("#!code_to_replace!#", smaliReflectionClassCode));
-        out.close();
-        fos.close();
+        return smaliClass.toString();
+    }
+
+    /**
+     * Writes a shard for every block of {@link AdvancedReflection#METHODS_PER_SHARD METHODS_PER_SHARD} methods invoked
+     * via reflection, each resolving its methods through a switch on their index, and the AdvancedApiReflection.smali
+     * file whose obfuscate method dispatches the invocations to the shards, as does its handle method if the method
+     * handles are used
+     */
+    @Override
+    protected void afterProcessing() throws IOException {
+        String apiReflectionFile = getApiReflectionClassFile();
+        int shards = (methodNum + METHODS_PER_SHARD - 1) / METHODS_PER_SHARD;
+        if (shards == 0) {
+            // No method is invoked via reflection, so the class is not added
+            if (budgetDir != null && classMethods > 0)
+                budget.releaseMethods(budgetDir, classMethods);
+            return;
+        }
+        // The class keeps the handle method of a previous execution, as the invocations it added still use it
+        boolean handles = methodHandles
+                || (fileExists(apiReflectionFile) && readFile(apiReflectionFile).contains("->handle(I)"));
+        // The shards are created from the txt source file AdvancedApiReflectionShardCode.txt in the resources folder
+        String shardCode = getStringBufferFromFile(shardClass).toString();
+        if (handles) {
+            shardCode = shardCode.replace("#!handle_init!#" + LS, TAB + "const/16 v0, #!shard_size!#" + LS + LS
+                            + TAB + "new-array v0, v0, [Ljava/lang/invoke/MethodHandle;" + LS + LS
+                            + TAB + "sput-object v0, Lcom/apireflectionmanager/#!shard_class!#;->obfuscatedHandles:[Ljava/lang/invoke/MethodHandle;" + LS + LS)
+                    .replace("#!handle_code!#" + LS, getStringBufferFromFile(shardHandleCode));
+        } else {
+            shardCode = shardCode.replace("#!handle_init!#" + LS, "").replace("#!handle_code!#" + LS, "");
+        }
+        for (int shard = firstMethodNum / METHODS_PER_SHARD; shard < shards; shard++) {
+            StringBuilder smaliShardCode = new StringBuilder();
+            StringBuilder shardLabels = new StringBuilder();
+            for (Map.Entry<Integer, String> entry : reflectionCodeByMethod.subMap(shard * METHODS_PER_SHARD, (shard + 1) * METHODS_PER_SHARD).entrySet()) {
+                smaliShardCode.append(entry.getValue());
+                shardLabels.append(TAB).append(TAB).append(":pswitch_").append(entry.getKey() % METHODS_PER_SHARD).append(LS);
+            }
+            int shardSize = Math.min(methodNum - shard * METHODS_PER_SHARD, METHODS_PER_SHARD);
+            writeFile(getShardClassFile(shard), shardCode.replace("#!shard_class!#", getShardClassName(shard))
+                    .replace("#!shard_size!#", String.format("0x%01X", shardSize))
+                    .replace("#!code_to_replace!#", smaliShardCode)
+                    .replace("#!shard_labels!#" + LS, shardLabels));
+        }
+        // The class is created, or created again with the new shards, from the txt source file
+        // AdvancedApiReflectionCode.txt in the resources folder
+        StringBuilder cases = new StringBuilder();
+        StringBuilder handleCases = new StringBuilder();
+        StringBuilder labels = new StringBuilder();
+        for (int shard = 0; shard < shards; shard++) {
+            cases.append(TAB).append(":pswitch_").append(shard).append(LS)
+                    .append(TAB).append("invoke-static {p0}, Lcom/apireflectionmanager/").append(getShardClassName(shard))
+                    .append(";->get(I)Ljava/lang/reflect/Method;").append(LS).append(LS)
+                    .append(TAB).append("move-result-object v0").append(LS).append(LS)
+                    .append(TAB).append("goto :goto_0").append(LS).append(LS);
+            handleCases.append(TAB).append(":pswitch_").append(shard).append(LS)
+                    .append(TAB).append("invoke-static {p0}, Lcom/apireflectionmanager/").append(getShardClassName(shard))
+                    .append(";->handle(I)Ljava/lang/invoke/MethodHandle;").append(LS).append(LS)
+                    .append(TAB).append("move-result-object v0").append(LS).append(LS)
+                    .append(TAB).append("return-object v0").append(LS).append(LS);
+            labels.append(TAB).append(TAB).append(":pswitch_").append(shard).append(LS);
+        }
+        String apiReflectionCode = getStringBufferFromFile(reflectionClass).toString()
+                .replace("#!handle_code!#" + LS, handles ? getStringBufferFromFile(handleCode).toString() : "")
+                .replace("#!methods_per_shard!#", String.format("0x%01X", METHODS_PER_SHARD))
+                .replace("#!shard_cases!#" + LS, cases)
+                .replace("#!shard_handle_cases!#" + LS, handleCases)
+                .replace("#!shard_labels!#" + LS, labels);
+        writeFile(apiReflectionFile, apiReflectionCode);
+    }
+
+    /**
+     * Assigns the number of the next method invoked via reflection; the methods of a new shard are reserved in the
+     * budget when its first method is assigned
+     *
+     * @return the number of the method, or -1 if there is no room for a new shard
+     */
+    synchronized private int nextMethodNum() {
+        if (methodNum % METHODS_PER_SHARD == 0 && !budget.reserveMethods(budgetDir, SHARD_METHODS + (methodHandles ? 1 : 0)))
+            return -1;
+        return methodNum++;
     }
 
     /**
@@ -169,21 +373,23 @@ public class AdvancedReflection implements Transformation {
      * is stored in the same register, then a check is made to see if it can be cast to the right object, then if the
      * original value was a primitive, a call is made to return the primitive value of the wrapper object
      *
-     * @param matcher the matcher matching the invocation and the move result instruction
+     * @param returnType return type of the original invocation
+     * @param moveResult the move result instruction following the original invocation
      * @return the string containing the new move result instruction
      */
-    private static String getNewMoveResult(Matcher matcher) {
+    private static String getNewMoveResult(String returnType, SmaliInstruction moveResult) {
         String newMoveResult = "";
-        if (matcher.group(8).startsWith("[") || matcher.group(8).startsWith("L")) {
+        String register = moveResult.getLastOperand();
+        if (returnType.startsWith("[") || returnType.startsWith("L")) {
             newMoveResult +=
-                    TAB + "move-result-object " + matcher.group(10) + LS + LS +
-                            TAB + "check-cast " + matcher.group(10) + ", " + matcher.group(8) + LS + LS;
+                    TAB + "move-result-object " + register + LS + LS +
+                            TAB + "check-cast " + register + ", " + returnType + LS + LS;
         } else {
             newMoveResult +=
-                    TAB + "move-result-object " + matcher.group(10) + LS + LS +
-                            TAB + "check-cast " + matcher.group(10) + ", " + types.get(matcher.group(8)) + LS + LS +
-                            TAB + "invoke-virtual {" + matcher.group(10) + "}, " + reverseCast.get(matcher.group(8)) + LS + LS +
-                            TAB + matcher.group(9);
+                    TAB + "move-result-object " + register + LS + LS +
+                            TAB + "check-cast " + register + ", " + types.get(returnType) + LS + LS +
+                            TAB + "invoke-virtual {" + register + "}, " + reverseCast.get(returnType) + LS + LS +
+                            TAB + moveResult.toString().strip();
         }
         return newMoveResult;
     }
@@ -193,7 +399,7 @@ public class AdvancedReflection implements Transformation {
      * The smali code generated declares an array that will contain all registers that represent the parameters needed
      * for the call (except, in case of an invoke-virtual call, the register containing the object whose method we are
      * calling), then a register will be used to store the number of the method we want to invoke (see
-     * {@link AdvancedReflection#addReflectionCode(String, String, ArrayList) addReflectionCode} for clarification on
+     * {@link AdvancedReflection#addReflectionCode(int, String, String, ArrayList) addReflectionCode} for clarification on
      * the index) and a call will be made to the obfuscate method of the AdvancedApiReflection class passing the number
      * of the method, the register containing the object whose method we are invoking (in case the method is virtual,
      * otherwise we initialize a register to 0 and add it instead) and the array containing the registers needed as
@@ -247,7 +453,7 @@ public class AdvancedReflection implements Transformation {
                 index++;
             }
         }
-        smaliCode.append(TAB + "const/16 #reg3#, ").append(String.format("0x%01X", methodNum)).append(LS).append(LS);
+        smaliCode.append(TAB).append(loadMethodNum("#reg3#", methodNum)).append(LS).append(LS);
 
         if (virtual) {
             smaliCode.append(TAB + "invoke-static {#reg3#, ")
@@ -266,6 +472,44 @@ public class AdvancedReflection implements Transformation {
         return smaliCode.toString();
     }
 
+    /**
+     * Creates the instructions replacing an invocation with the invocation of its method handle: the number of the
+     * method is passed to the handle method of the AdvancedApiReflection class, which returns the handle, resolved and
+     * cached the first time, and the handle is invoked by invoke-polymorphic with invokeExact, passing the registers of
+     * the original invocation
+     *
+     * @param methodNum   number of the current method
+     * @param locals      number of local registers of the current method, the first free one holds the handle
+     * @param registerStr string containing all registers passed to the original invocation
+     * @param type        type of the method handle, e.g. (Landroid/telephony/SmsManager;Ljava/lang/String;)V
+     * @return the string containing the code to perform the invocation through the method handle
+     */
+    private String createMethodHandleInvocation(int methodNum, int locals, String registerStr, String type) {
+        String handle = "v" + locals;
+        String registers = registerStr.isBlank() ? handle : handle + ", " + registerStr.strip();
+        return loadMethodNum(handle, methodNum) + LS + LS +
+                TAB + "invoke-static {" + handle + "}, Lcom/apireflectionmanager/AdvancedApiReflection;->handle(I)Ljava/lang/invoke/MethodHandle;" + LS + LS +
+                TAB + "move-result-object " + handle + LS + LS +
+                TAB + "invoke-polymorphic {" + registers + "}, Ljava/lang/invoke/MethodHandle;->invokeExact([Ljava/lang/Object;)Ljava/lang/Object;, " + type;
+    }
+
+    /**
+     * @param register  register to load the number into
+     * @param methodNum number of the method
+     * @return the instruction loading the number of a method, with the shortest const instruction fitting it
+     */
+    private static String loadMethodNum(String register, int methodNum) {
+        return (methodNum > Short.MAX_VALUE ? "const " : "const/16 ") + register + ", " + String.format("0x%01X", methodNum);
+    }
+
+    /**
+     * @param registerStr string containing the registers of an invocation, separated by commas
+     * @return the number of registers
+     */
+    private static int countRegisters(String registerStr) {
+        return registerStr.isBlank() ? 0 : registerStr.split(",").length;
+    }
+
     /**
      * Splits the parameters string generating an arraylist with each element being a parameter
      *
@@ -318,129 +562,114 @@ public class AdvancedReflection implements Transformation {
     }
 
     /**
-     * Generates code that will be inserted in the AdvancedApiReflection.smali file in the constructor.
+     * Generates the case of the switch of the resolve method of a shard of the AdvancedApiReflection class that
+     * resolves the method the first time it is invoked.
      * This code creates the instructions to:
      * <ul>
      *     <li>declare an array that will contain the classes of the parameters to perform the original invocation </li>
      *     <li>save the name of the method as a string </li>
      *     <li>save the class we are invoking the method of </li>
      *     <li>instantiate a {@link java.lang.reflect.Method} object containing all the information needed to perform the call</li>
-     *     <li>store this object in a static field of this file</li>
      * </ul>
      * The call to the method via reflection will be done by calling the obfuscate method of the AdvancedApiReflection
-     * class passing the parameters needed to perform the call and the number of the method that will be used as index
-     * to retrieve the {@link java.lang.reflect.Method} object from the static list
+     * class passing the parameters needed to perform the call and the number of the method, which selects the shard and
+     * the index of the method in the shard: the shard resolves the {@link java.lang.reflect.Method} object on the first
+     * call, makes it accessible and caches it in its static array at the same index, so only the methods actually
+     * invoked are looked up, and each of them only once
      *
+     * @param index      index of the method in its shard
      * @param className  name of the class of which we are invoking the method
      * @param methodName name of the method we want to invoke
      * @param params     parameters to be passed when invoking the method
-     * @return the string containing the code to insert in the AdvancedApiReflection.smali file to add the current
-     * method to the ones invocable via reflection
+     * @return the string containing the code to insert in the shard to resolve the current method
      */
-    private String addReflectionCode(String className, String methodName, ArrayList<String> params) {
+    private String addReflectionCode(int index, String className, String methodName, ArrayList<String> params) {
         StringBuilder smaliCode = new StringBuilder();
-        smaliCode.append(LS).append(TAB)
+        smaliCode.append(LS).append(TAB).append(":pswitch_").append(index).append(LS).append(TAB)
                 .append("const/4 v1, ").append(String.format("0x%01X", params.size())).append(LS).append(LS);
-        instrLength++;
 
         if (!params.isEmpty()) {
             smaliCode.append(TAB).append("new-array v1, v1, [Ljava/lang/Class;").append(LS).append(LS);
-            instrLength += 2;
         }
 
         for (int i = 0; i < params.size(); i++) {
             smaliCode.append(TAB).append("const/4 v2, ").append(String.format("0x%01X", i)).append(LS).append(LS);
-            instrLength++;
 
             String classParam = sget.get(params.get(i));
             if (classParam != null) {
                 smaliCode.append(TAB).append("sget-object v3, ").append(classParam).append(LS).append(LS);
-                instrLength += 2;
             } else {
                 smaliCode.append(TAB).append("const-class v3, ").append(params.get(i)).append(";").append(LS).append(LS);
-                instrLength += 2;
             }
 
             smaliCode.append(TAB).append("aput-object v3, v1, v2").append(LS).append(LS);
-            instrLength += 2;
         }
 
         smaliCode.append(TAB).append("const-class v2, ").append(className).append(LS).append(LS)
                 .append(TAB).append("const-string v3, \"").append(methodName).append("\"").append(LS).append(LS);
-        instrLength += 4;
 
         smaliCode.append(TAB).append("invoke-virtual {v2, v3, v1}, Ljava/lang/Class;->getDeclaredMethod(" +
                 "Ljava/lang/String;[Ljava/lang/Class;)Ljava/lang/reflect/Method;").append(LS).append(LS);
-        instrLength += 3;
 
         smaliCode.append(TAB).append("move-result-object v1").append(LS).append(LS)
-                .append(TAB).append("sget-object v2, Lcom/apireflectionmanager/AdvancedApiReflection;->")
-                .append("obfuscatedMethods:Ljava/util/List;").append(LS).append(LS);
-        instrLength += 3;
-
-        smaliCode.append(TAB).append("invoke-interface {v2, v1}, Ljava/util/List;->add(Ljava/lang/Object;)Z").append(LS);
-        instrLength += 3;
+                .append(TAB).append("goto :goto_0").append(LS);
         return smaliCode.toString();
     }
 
     /**
-     * Creates the folder and the file to declare the AdvancedApiReflection class containing the methods to operate the
-     * invocation via reflection
+     * Returns the path of the file declaring the AdvancedApiReflection class containing the methods to operate the
+     * invocation via reflection, inside the package com/apireflectionmanager; the missing directories are created when
+     * the workspace is flushed
      *
      * @return the string path to the file in the working directory
      */
-    private String createApiReflectionClassFile() {
+    private String getApiReflectionClassFile() {
+        return getApiReflectionDir().resolve("AdvancedApiReflection.smali").toString();
+    }
+
+    /**
+     * @param shard number of the shard
+     * @return the string path to the file declaring the shard in the working directory
+     */
+    private String getShardClassFile(int shard) {
+        return getApiReflectionDir().resolve(getShardClassName(shard) + ".smali").toString();
+    }
+
+    /**
+     * @param shard number of the shard
+     * @return the simple name of the class of the shard, e.g. AdvancedApiReflectionShard0
+     */
+    private static String getShardClassName(int shard) {
+        return "AdvancedApiReflectionShard" + shard;
+    }
+
+    /**
+     * Reads the minimum SDK of the APK from the apktool.yml file of the decompiled APK, next to its smali directories
+     *
+     * @return the minimum SDK, or 0 if it can't be found
+     */
+    private int getMinSdk() throws IOException {
+        String apktoolYml = getSmaliPath().getParent().resolve("apktool.yml").toString();
+        if (!fileExists(apktoolYml))
+            return 0;
+        Matcher matcher = MIN_SDK.matcher(readFile(apktoolYml));
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : 0;
+    }
+
+    private Path getApiReflectionDir() {
+        return getSmaliPath().resolve("com").resolve("apireflectionmanager");
+    }
+
+    private Path getSmaliPath() {
         String separator = SEPARATOR;
         if (CommandExecution.os.contains("win")) {
             separator += SEPARATOR;
         }
         Pattern pattern = Pattern.compile(separator + "smali");
         Matcher matcher = pattern.matcher(path);
-        Path rflPath = null;
-        try {
-            if (matcher.find()) {
-                Path smaliPath = Paths.get(path.substring(0, matcher.end()));
-                Path comDir = smaliPath.resolve("com");
-                if (!Files.exists(comDir)) {
-                    Path rflPkg = Files.createDirectories(comDir.resolve("apireflectionmanager"));
-                    rflPath = rflPkg.resolve("AdvancedApiReflection.smali");
-                    createReflectionFile(rflPath.toString());
-                } else {
-                    Path rflPkg = comDir.resolve("apireflectionmanager");
-                    if (!Files.exists(rflPkg)) {
-                        Files.createDirectory(rflPkg);
-                        rflPath = rflPkg.resolve("AdvancedApiReflection.smali");
-                        createReflectionFile(rflPath.toString());
-                    } else {
-                        rflPath = rflPkg.resolve("AdvancedApiReflection.smali");
-                        if (!Files.exists(rflPath)) {
-                            createReflectionFile(rflPath.toString());
-                        }
-                    }
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
-        assert rflPath != null;
-        return rflPath.toString();
-    }
-
-    /**
-     * Creates the AdvancedApiReflection.smali file copying the contents from the txt source file
-     * AdvancedApiReflectionCode.txt in the resources folder
-     *
-     * @param pathToRfl path to the AdvancedApiReflection.smali file
-     * @throws FileNotFoundException
-     * @throws UnsupportedEncodingException
-     */
-    private void createReflectionFile(String pathToRfl) throws FileNotFoundException, UnsupportedEncodingException {
-        StringBuffer text = getStringBufferFromFile(reflectionClass);
-        File decryption = new File(pathToRfl);
-        PrintStream ps = new PrintStream(new FileOutputStream(decryption));
-        ps.print(text);
-        ps.close();
+        if (!matcher.find())
+            throw new IllegalStateException("No smali directory found in " + path);
+        return Paths.get(path.substring(0, matcher.end()));
     }
 
 }
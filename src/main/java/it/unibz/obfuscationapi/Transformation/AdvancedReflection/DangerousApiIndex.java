@@ -0,0 +1,150 @@
+package it.unibz.obfuscationapi.Transformation.AdvancedReflection;
+
+import java.io.FileNotFoundException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static it.unibz.obfuscationapi.Utility.Utilities.*;
+
+/**
+ * Immutable index of the dangerous api calls listed in dangerous_api.txt, loaded once per JVM and shared by all the
+ * AdvancedReflection transformations<br>
+ * A method is looked up in a hash set; before that, a whole smali file can be rejected if it does not reference any of
+ * the classes declaring the dangerous methods, which is checked with a single pass over its contents by an Aho-Corasick
+ * automaton matching the prefixes Lclass;-> of all the methods at the same time
+ */
+public class DangerousApiIndex {
+    private static final String PATH = Paths.get("it", "unibz", "obfuscationapi", "dangerous_api.txt").toString();
+    // First and last character of the alphabet of the automaton, the other characters bring it back to the root
+    private static final char FIRST = ' ';
+    private static final char LAST = '~';
+    private static final int ALPHABET = LAST - FIRST + 1;
+    private static volatile DangerousApiIndex instance;
+
+    private final Set<String> methods;
+    // Transitions of the automaton, ALPHABET entries per state, with the failure links already followed
+    private final int[] transitions;
+    private final boolean[] accepting;
+
+    private DangerousApiIndex(Set<String> methods) {
+        this.methods = Set.copyOf(methods);
+        LinkedHashSet<String> prefixes = new LinkedHashSet<>();
+        for (String method : methods) {
+            int arrow = method.indexOf(";->");
+            if (arrow != -1)
+                prefixes.add(method.substring(0, arrow + 3));
+        }
+        // Trie of the prefixes
+        ArrayList<int[]> trie = new ArrayList<>();
+        ArrayList<Boolean> ends = new ArrayList<>();
+        trie.add(newState());
+        ends.add(false);
+        for (String prefix : prefixes) {
+            int state = 0;
+            for (int i = 0; i < prefix.length(); i++) {
+                int c = index(prefix.charAt(i));
+                if (c == -1)
+                    throw new IllegalArgumentException("Unsupported character in the dangerous api " + prefix);
+                if (trie.get(state)[c] == -1) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(newState());
+                    ends.add(false);
+                }
+                state = trie.get(state)[c];
+            }
+            ends.set(state, true);
+        }
+        // Breadth-first construction of the failure links, turning the trie into a deterministic automaton
+        transitions = new int[trie.size() * ALPHABET];
+        accepting = new boolean[trie.size()];
+        int[] failure = new int[trie.size()];
+        int[] queue = new int[trie.size()];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < ALPHABET; c++) {
+            int next = trie.getFirst()[c];
+            transitions[c] = next == -1 ? 0 : next;
+            if (next != -1)
+                queue[tail++] = next;
+        }
+        accepting[0] = ends.getFirst();
+        while (head < tail) {
+            int state = queue[head++];
+            accepting[state] = ends.get(state) || accepting[failure[state]];
+            for (int c = 0; c < ALPHABET; c++) {
+                int next = trie.get(state)[c];
+                if (next == -1) {
+                    transitions[state * ALPHABET + c] = transitions[failure[state] * ALPHABET + c];
+                } else {
+                    failure[next] = transitions[failure[state] * ALPHABET + c];
+                    transitions[state * ALPHABET + c] = next;
+                    queue[tail++] = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the index of the dangerous api calls, loaded the first time it is requested
+     */
+    public static DangerousApiIndex getInstance() throws FileNotFoundException, UnsupportedEncodingException {
+        DangerousApiIndex index = instance;
+        if (index == null) {
+            synchronized (DangerousApiIndex.class) {
+                index = instance;
+                if (index == null) {
+                    LinkedHashSet<String> methods = new LinkedHashSet<>(
+                            Arrays.asList(getStringBufferFromFile(PATH).toString().split(LS)));
+                    methods.remove("");
+                    index = new DangerousApiIndex(methods);
+                    instance = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @param method method invoked, e.g. Landroid/telephony/SmsManager;->getDefault()Landroid/telephony/SmsManager;
+     * @return true if the method is a dangerous api call
+     */
+    public boolean contains(String method) {
+        return methods.contains(method);
+    }
+
+    /**
+     * Checks in a single pass whether a text references one of the classes declaring dangerous api calls, in the form
+     * Lclass;-> used by the invocations
+     *
+     * @param text contents of a smali file
+     * @return false if none of the dangerous api calls can be invoked in the text
+     */
+    public boolean mayInvokeDangerousApi(String text) {
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int c = index(text.charAt(i));
+            state = c == -1 ? 0 : transitions[state * ALPHABET + c];
+            if (accepting[state])
+                return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        return methods.size();
+    }
+
+    private static int index(char c) {
+        return c < FIRST || c > LAST ? -1 : c - FIRST;
+    }
+
+    private static int[] newState() {
+        int[] state = new int[ALPHABET];
+        Arrays.fill(state, -1);
+        return state;
+    }
+}
@@ -1,13 +1,12 @@
 package it.unibz.obfuscationapi.Transformation.ArithmeticBranching;
 
-import it.unibz.obfuscationapi.Transformation.Transformation;
+import it.unibz.obfuscationapi.Smali.SmaliClass;
+import it.unibz.obfuscationapi.Smali.SmaliMethod;
+import it.unibz.obfuscationapi.Transformation.HotCodeFilter;
+import it.unibz.obfuscationapi.Transformation.SmaliTransformation;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static it.unibz.obfuscationapi.Utility.Utilities.*;
 
@@ -16,7 +15,7 @@ import static it.unibz.obfuscationapi.Utility.Utilities.*;
  * The arithmetic branching creates possible alternative branches (that are not executed) via an arithmetic check,
  * inserting some goto instructions and labels but preserving the code functionality
  */
-public class ArithmeticBranching implements Transformation {
+public class ArithmeticBranching extends SmaliTransformation {
     private final String path;
     private final ArrayList<String> dirsToExclude;
 
@@ -34,10 +33,25 @@ public class ArithmeticBranching implements Transformation {
         this.dirsToExclude = dirsToExclude;
     }
 
+    @Override
+    protected Stage getStage() {
+        return Stage.JUNK;
+    }
+
+    @Override
+    protected String getCacheParameters() {
+        return HotCodeFilter.getCacheParameters();
+    }
+
+    @Override
+    protected ArrayList<String> getFiles() throws IOException {
+        return navigateDirectoryContents(path, dirsToExclude);
+    }
+
     /**
-     * Applies the arithmetic branching transformation to all files under path excluding the files under the directories
-     * to exclude. This method alters only methods that are neither abstract nor native and only if they have at least
-     * two local registers instantiated.
+     * Applies the arithmetic branching transformation to a file under path, the files under the directories to exclude
+     * are never passed to this method. This method alters only methods that are neither abstract nor native and only if
+     * they have at least two local registers instantiated, skipping the hot methods of the {@link HotCodeFilter profile}.
      * The transformation preserves the code functionality but creates possible branches for the execution.
      *
      * <blockquote> <pre>
@@ -65,54 +79,37 @@ public class ArithmeticBranching implements Transformation {
      *      goto :start
      * </pre> </blockquote>
      *
-     * @throws Exception
+     * @param file     path of the file to modify
+     * @param fileCopy contents of the file
+     * @return the contents of the file with the branches added
      */
     @Override
-    public void obfuscate() throws Exception {
-        ArrayList<String> files = navigateDirectoryContents(path, dirsToExclude);
-        for (String file : files) {
-            StringBuffer fileCopy = getStringBufferFromFile(file);
-            StringBuilder nFile = new StringBuilder();
-            String regex = "(\\.method .*" + LS + ")(?s)(.*?)(\\.end method)";
-            Pattern pattern = Pattern.compile(regex);
-            Matcher matcher = pattern.matcher(fileCopy);
-            while (matcher.find()) {
-                if (matcher.group(1).contains("abstract") || matcher.group(1).contains("native"))
-                    continue;
-
-                Pattern pattern1 = Pattern.compile("(\\.locals ([0-9]+))(?s)(.*)");
-                Matcher matcher1 = pattern1.matcher(matcher.group(2));
-                if (!matcher1.find())
-                    continue;
-                int locals = Integer.parseInt(matcher1.group(2));
-                if (locals < 2)
-                    continue;
-                String startLabel = generateRandomString(16, null);
-                String endLabel = generateRandomString(16, null);
-                String tempLabel = generateRandomString(16, null);
-                int v0 = randInt(1, 32);
-                int v1 = randInt(1, 32);
-                String temp = matcher1.group(1) + LS + LS +
-                        TAB + "const v0, " + String.format("0x%01X",v0) + LS + LS +
-                        TAB + "const v1, " + String.format("0x%01X",v1) + LS + LS +
-                        TAB + "add-int v0, v0, v1" + LS + LS +
-                        TAB + "rem-int v0, v0, v1" + LS + LS +
-                        TAB + "if-gtz v0, :" + tempLabel + LS + LS +
-                        TAB + "goto/32 :" + endLabel + LS + LS +
-                        TAB + ":" + tempLabel + LS + LS +
-                        TAB + ":" + startLabel +
-                        matcher1.group(3) + LS +
-                        TAB + ":" + endLabel + LS + LS +
-                        TAB + "goto/32 :" + startLabel + LS;
-                matcher.appendReplacement(nFile, Matcher.quoteReplacement(matcher.group(1) + temp + matcher.group(3)));
-            }
-            matcher.appendTail(nFile);
-            File f = new File(file);
-            FileOutputStream fos = new FileOutputStream(f);
-            OutputStreamWriter out = new OutputStreamWriter(fos, CHAR_ENCODING);
-            out.append(nFile.toString());
-            out.close();
-            fos.close();
+    protected String process(String file, String fileCopy) {
+        SmaliClass smaliClass = SmaliClass.parse(fileCopy);
+        for (SmaliMethod method : smaliClass.getMethods()) {
+            if (method.isAbstract() || method.isNative())
+                continue;
+            if (method.getLocals() < 2 || HotCodeFilter.isHot(smaliClass.getName(), method.getSignature()))
+                continue;
+            String startLabel = generateRandomString(16, null);
+            String endLabel = generateRandomString(16, null);
+            String tempLabel = generateRandomString(16, null);
+            int v0 = randInt(1, 32);
+            int v1 = randInt(1, 32);
+            String branch = LS +
+                    TAB + "const v0, " + String.format("0x%01X",v0) + LS + LS +
+                    TAB + "const v1, " + String.format("0x%01X",v1) + LS + LS +
+                    TAB + "add-int v0, v0, v1" + LS + LS +
+                    TAB + "rem-int v0, v0, v1" + LS + LS +
+                    TAB + "if-gtz v0, :" + tempLabel + LS + LS +
+                    TAB + "goto/32 :" + endLabel + LS + LS +
+                    TAB + ":" + tempLabel + LS + LS +
+                    TAB + ":" + startLabel;
+            method.insert(method.indexOfLocals() + 1, branch);
+            method.append(LS +
+                    TAB + ":" + endLabel + LS + LS +
+                    TAB + "goto/32 :" + startLabel);
         }
+        return smaliClass.toString();
     }
 }
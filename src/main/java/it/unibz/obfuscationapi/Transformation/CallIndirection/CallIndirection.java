@@ -1,13 +1,29 @@
 package it.unibz.obfuscationapi.Transformation.CallIndirection;
 
-import it.unibz.obfuscationapi.Transformation.Transformation;
+import it.unibz.obfuscationapi.Smali.SmaliClass;
+import it.unibz.obfuscationapi.Smali.SmaliField;
+import it.unibz.obfuscationapi.Smali.SmaliInstruction;
+import it.unibz.obfuscationapi.Smali.SmaliMethod;
+import it.unibz.obfuscationapi.Transformation.DexBudget;
+import it.unibz.obfuscationapi.Transformation.HotCodeFilter;
+import it.unibz.obfuscationapi.Transformation.SmaliTransformation;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -16,9 +32,13 @@ import static it.unibz.obfuscationapi.Utility.Utilities.*;
 /**
  * Class that applies the call indirection transformation: it scans the files contained in the smali directories of the
  * decompiled APK replacing the invocations to methods with the invocation to a new method, that performs the original
- * invocation instead.
+ * invocation instead.<br>
+ * Where the new methods are added is decided by the {@link StubPlacement placement}: by default they are appended to
+ * the class performing the invocation, otherwise they are added to public trampoline classes, either in the dex file of
+ * the invoking class or in new dex files, where a single method performs the same invocation for all the classes of a
+ * dex file.
  */
-public class CallIndirection implements Transformation {
+public class CallIndirection extends SmaliTransformation {
     private final ArrayList<String> dirsToExclude;
     /*
      * To apply the transformation and not break the APK, the class need to keep track of the limit of methods that can
@@ -27,6 +47,45 @@ public class CallIndirection implements Transformation {
      * the number of methods that can be added in total
      */
     private final HashMap<String, Integer> dirsByLimit;
+    private final HashMap<String, DirState> statesByDir = new HashMap<>();
+    private final HashMap<String, String> dirsByFile = new HashMap<>();
+    private DexBudget budget;
+    private StubPlacement stubPlacement = StubPlacement.CALLING_CLASS;
+    private final static String TRAMPOLINE_PACKAGE = "com/callindirection/";
+    private final static int STUBS_PER_TRAMPOLINE = 1000;
+    // Each stub in a new dex file declares a method and references the method it invokes
+    private final static int METHODS_PER_OVERFLOW_STUB = 2;
+    // Smali directories of the APK, where the classes of the invoked methods are looked up
+    private final TreeSet<Path> smaliRoots = new TreeSet<>();
+    // Whether the invoked methods are public, so that a trampoline class can invoke them
+    private final ConcurrentHashMap<String, Boolean> publicTargets = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Trampolines> trampolines = new CopyOnWriteArrayList<>();
+    // Stubs of the trampoline classes in the new dex files, shared by all the smali directories of the APK
+    private final ConcurrentHashMap<String, String> overflowStubs = new ConcurrentHashMap<>();
+    private volatile Trampolines overflowTrampolines;
+    private int overflowDex;
+
+    /**
+     * Where the methods performing the invocations are added
+     */
+    public enum StubPlacement {
+        /**
+         * Appended to the class performing the invocation; the method is reused by the other classes of the dex file
+         * only if the class is public or if they share its source file
+         */
+        CALLING_CLASS,
+        /**
+         * Added to public trampoline classes in the smali directory of the invoking class, with a single method for each
+         * invocation shared by all the classes of its dex file
+         */
+        DEX_TRAMPOLINES,
+        /**
+         * Added to public trampoline classes in new smali directories (smali_classesN+1 for an APK with N dex files,
+         * then N+2 when its dex file is full, and so on), with a single method for each invocation shared by all the
+         * dex files, which only pay for the reference to the method
+         */
+        OVERFLOW_TRAMPOLINES
+    }
 
     public CallIndirection(HashMap<String, Integer> dirsByLimit) {
         this.dirsByLimit = dirsByLimit;
@@ -42,136 +101,520 @@ public class CallIndirection implements Transformation {
     }
 
     /**
-     * Applies the call indirection transformation to all files found under the smali directories avoiding the
-     * directories in {@link CallIndirection#dirsToExclude dirsToExclude}
+     * State shared by all the files under the same smali directory, which are processed concurrently
+     */
+    private static class DirState {
+        // Directory of the budget containing the smali directory, whose dex file receives the new methods
+        private final String budgetDir;
+        private final AtomicInteger methodNumber = new AtomicInteger(1);
+        // We keep a map of all methods added paired with the call that they substitute, so that in case we find the
+        // same call in another file under the same smali folder we can reference the method already created, except
+        // for in some special cases (e.g. the class is not public, invocation passes registers containing private
+        // volatile fields)
+        private final ConcurrentHashMap<String, String> indirectMethods = new ConcurrentHashMap<>();
+        // Trampoline classes of the directory, used with StubPlacement.DEX_TRAMPOLINES
+        private Trampolines trampolines;
+
+        private DirState(String budgetDir) {
+            this.budgetDir = budgetDir;
+        }
+    }
+
+    /**
+     * Public trampoline classes of a smali directory, named Trampoline{dex}_{n}, each holding up to
+     * STUBS_PER_TRAMPOLINE stubs<br>
+     * A stub is numbered atomically when it is added, and the number determines the class and the name of the method,
+     * so stubs can be added concurrently; the classes are written once all the files have been processed
+     */
+    private class Trampolines {
+        private final Path root;
+        // Directory of the budget charged for the methods of the stubs
+        private final String budgetDir;
+        private final int dex;
+        private final int firstClass;
+        private final AtomicInteger stubNumber = new AtomicInteger();
+        private final ConcurrentSkipListMap<Integer, String> codeByStub = new ConcurrentSkipListMap<>();
+
+        private Trampolines(Path root, String budgetDir) {
+            this.root = root;
+            this.budgetDir = budgetDir;
+            dex = dexIndex(root);
+            // The classes added by a previous execution on the same variant are kept
+            int n = 0;
+            while (fileExists(getClassFile(n)))
+                n++;
+            firstClass = n;
+        }
+
+        /**
+         * Adds a stub performing an invocation, reserving its methods in the budget
+         *
+         * @param methods number of methods the stub adds to the dex file
+         * @return the reference to the stub, or null if the dex file has no room for it
+         */
+        private String add(int methods, String invocationType, String methodClass, String methodParameters,
+                           String methodReturnType, String invocation, int numParameters) {
+            if (!budget.reserveMethods(budgetDir, methods))
+                return null;
+            int n = stubNumber.getAndIncrement();
+            String stub = getClassName(firstClass + n / STUBS_PER_TRAMPOLINE) + "->method" + (n % STUBS_PER_TRAMPOLINE)
+                    + "(" + (invocationType.equals("virtual") ? methodClass : "") + methodParameters + ")" + methodReturnType;
+            codeByStub.put(n, createStub(stub.substring(stub.indexOf("->") + 2), invocationType, numParameters,
+                    invocation, methodReturnType));
+            return stub;
+        }
+
+        private String getClassName(int n) {
+            return "L" + TRAMPOLINE_PACKAGE + "Trampoline" + dex + "_" + n + ";";
+        }
+
+        private String getClassFile(int n) {
+            return root.resolve(TRAMPOLINE_PACKAGE + "Trampoline" + dex + "_" + n + ".smali").toString();
+        }
+
+        private void write() {
+            TreeMap<Integer, StringBuilder> codeByClass = new TreeMap<>();
+            for (Map.Entry<Integer, String> entry : codeByStub.entrySet())
+                codeByClass.computeIfAbsent(firstClass + entry.getKey() / STUBS_PER_TRAMPOLINE, _ -> new StringBuilder())
+                        .append(entry.getValue());
+            codeByClass.forEach((n, code) -> writeFile(getClassFile(n), ".class public " + getClassName(n) + LS
+                    + ".super Ljava/lang/Object;" + LS
+                    + ".source \"Trampoline" + dex + "_" + n + ".java\"" + LS + LS + LS
+                    + "# direct methods" + LS + code));
+        }
+    }
+
+    /**
+     * Sets where the methods performing the invocations are added; since the trampoline classes belong to another
+     * package, with the placements other than CALLING_CLASS only the invocations of public methods of public classes
+     * are replaced
+     *
+     * @param stubPlacement placement of the new methods
+     */
+    public void setStubPlacement(StubPlacement stubPlacement) {
+        this.stubPlacement = stubPlacement;
+    }
+
+    /**
+     * Reserves a method in the budget of the dex file of a directory and assigns it a number
      *
-     * @throws IOException
+     * @return the number reserved, or -1 if the limit of methods of the dex file was reached
+     */
+    private int reserveMethodNumber(DirState state) {
+        if (!budget.reserveMethods(state.budgetDir, 1))
+            return -1;
+        return state.methodNumber.getAndIncrement();
+    }
+
+    private boolean isFull(DirState state) {
+        return budget.getRemainingMethods(state.budgetDir) == 0;
+    }
+
+    /**
+     * Resets the state of a previous execution; the methods are reserved in the budget shared with the other
+     * transformations of the variant if one was set, otherwise in a budget holding the limit of methods of each smali
+     * directory
      */
     @Override
-    public void obfuscate() throws IOException {
+    protected void beforeProcessing() {
+        statesByDir.clear();
+        dirsByFile.clear();
+        smaliRoots.clear();
+        publicTargets.clear();
+        trampolines.clear();
+        overflowStubs.clear();
+        overflowTrampolines = null;
+        overflowDex = 0;
+        budget = getDexBudget() != null ? getDexBudget() : new DexBudget(dirsByLimit);
         for (String path : dirsByLimit.keySet()) {
-            int limit = dirsByLimit.get(path);
-            ArrayList<String> files = navigateDirectoryContents(path, dirsToExclude);
-            int methodNumber = 1;
-            // We keep a hash map of all methods added paired with the call that they substitute, so that in case we
-            // find the same call in another file under the same smali folder we can reference the method already
-            // created, except for in some special cases (e.g. the class is not public, invocation passes registers
-            // containing private volatile fields)
-            HashMap<String, String> indirectMethods = new HashMap<>();
-            for (String file : files) {
-                if (methodNumber >= limit) {
+            DirState state = new DirState(budget.findDir(path));
+            statesByDir.put(path, state);
+            Path root = findSmaliRoot(Paths.get(path));
+            if (root == null)
+                continue;
+            smaliRoots.add(root);
+            if (stubPlacement == StubPlacement.DEX_TRAMPOLINES) {
+                state.trampolines = new Trampolines(root, state.budgetDir);
+                trampolines.add(state.trampolines);
+            }
+        }
+    }
+
+    @Override
+    protected Stage getStage() {
+        return Stage.INDIRECTION;
+    }
+
+    /**
+     * Collects the files found under the smali directories avoiding the directories in
+     * {@link CallIndirection#dirsToExclude dirsToExclude}, remembering the directory of each one
+     */
+    @Override
+    protected ArrayList<String> getFiles() throws IOException {
+        ArrayList<String> files = new ArrayList<>();
+        for (String path : dirsByLimit.keySet()) {
+            for (String file : navigateDirectoryContents(path, dirsToExclude)) {
+                dirsByFile.put(file, path);
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Writes the trampoline classes holding the methods added with the placements other than CALLING_CLASS
+     */
+    @Override
+    protected void afterProcessing() {
+        if (stubPlacement == StubPlacement.CALLING_CLASS) {
+            for (String path : statesByDir.keySet()) {
+                System.out.println("Number of methods added " + statesByDir.get(path).methodNumber.get());
+            }
+            return;
+        }
+        for (Trampolines t : trampolines) {
+            System.out.println("Number of methods added to the trampoline classes of " + t.root.getFileName() + " "
+                    + t.codeByStub.size());
+            t.write();
+        }
+    }
+
+    /**
+     * Applies the call indirection transformation to a file found under one of the smali directories
+     *
+     * @param file     path of the file to modify
+     * @param fileCopy contents of the file
+     * @return the contents of the file with the invocations replaced and the new methods appended
+     */
+    @Override
+    protected String process(String file, String fileCopy) {
+        DirState state = statesByDir.get(dirsByFile.get(file));
+        if (isFull(state)) {
+            return fileCopy;
+        }
+
+        StringBuilder newFile = new StringBuilder();
+        StringBuilder temp = new StringBuilder();
+
+        Pattern pattern = Pattern.compile("\\.class (.*) (L.*;)(?s).*\\.source \"(.*?)\"");
+        Matcher matcher = pattern.matcher(fileCopy);
+
+        if (!matcher.find())
+            return fileCopy;
+
+        // We set a maximum of methods to be added to a class because me may hit the limit before we modify a
+        // reasonable number of classes if we substituted every method we found
+        int count = 0;
+        HashSet<String> pVFields = getPrivateVolatileFields(fileCopy);
+        // We want to know if the class is public, because if it isn't we can't keep the new methods introduced to
+        // reference them in other classes
+        boolean isPublic = matcher.group(1).contains("public");
+        String currentClass = matcher.group(2);
+        // If the class is not public we can't reference the methods we create from other classes, but because
+        // some big classes are divided in multiple smali files, we can still invoke a method of a non-public
+        // class if the current class has the same source
+        String source = matcher.group(3);
+        Set<Integer> invocationsPassingFields = pVFields.isEmpty() ? Set.of()
+                : findInvocationsPassingFields(fileCopy, pVFields);
+        // The invocations in hot code are left direct
+        Set<Integer> hotInvocations = HotCodeFilter.findHotInvocations(fileCopy);
+
+        // group(1) is the type of invocation: static for static methods or virtual
+        // group(2) contains the registers we're passing as parameters for the call
+        // group(3) is the name of the class whose method we're invoking
+        // group(4) is the name of the method
+        // group(5) contains the parameters of the method we're calling
+        // group(6) and group(7) are nullable and indicate return type of the call (if group(5) is not null then the
+        // return type is void, else the return type is indicated by group(6))
+        pattern = Pattern.compile("invoke-(virtual|static) (\\{.*}), (.*;)->(.*)\\((.*)\\)(V)?(.*)?");
+        matcher = pattern.matcher(fileCopy);
+        while (matcher.find() && !isFull(state) && count < 3) {
+            String invocationType = matcher.group(1);
+            String methodRegisters = matcher.group(2);
+            String methodClass = matcher.group(3);
+            String methodName = matcher.group(4);
+            String methodParameters = matcher.group(5);
+            String methodReturnType = matcher.group(6) != null ? matcher.group(6) : matcher.group(7);
+            String invocation = methodClass + "->" + methodName + "(" + methodParameters + ")" + methodReturnType;
+            boolean newMethod = false;
+            String method;
+            if (invocationsPassingFields.contains(matcher.start()) || hotInvocations.contains(matcher.start()))
+                continue;
+            if (stubPlacement != StubPlacement.CALLING_CLASS) {
+                method = state.indirectMethods.get(invocation);
+                if (method == null) {
+                    if (!isPublicTarget(methodClass, methodName + "(" + methodParameters + ")" + methodReturnType))
+                        continue;
+                    method = stubPlacement == StubPlacement.DEX_TRAMPOLINES
+                            ? getDexStub(state, invocationType, methodClass, methodParameters, methodReturnType, invocation, occurrences(methodRegisters))
+                            : getOverflowStub(state, invocationType, methodClass, methodParameters, methodReturnType, invocation, occurrences(methodRegisters));
+                    if (method == null)
+                        break;
+                    count++;
+                }
+                matcher.appendReplacement(newFile, Matcher.quoteReplacement("invoke-static " + methodRegisters + ", " + method));
+                continue;
+            }
+            method = state.indirectMethods.get(invocation);
+            if (method == null)
+                method = state.indirectMethods.get(source + invocation);
+            if (method == null) {
+                int methodNumber = reserveMethodNumber(state);
+                if (methodNumber == -1)
                     break;
+                String candidate = currentClass + "->method" + methodNumber + "(" + (invocationType.equals("virtual") ? methodClass : "") + methodParameters + ")" + methodReturnType;
+                // We want to save the invocation including the source only if our class is not public, so only
+                // classes with the same source can then invoke this method; if another file registered the same
+                // invocation in the meantime we use its method instead, the number reserved is left unused and the
+                // method is given back to the budget
+                method = state.indirectMethods.putIfAbsent(isPublic ? invocation : source + invocation, candidate);
+                if (method == null) {
+                    method = candidate;
+                    newMethod = true;
+                } else {
+                    budget.releaseMethods(state.budgetDir, 1);
                 }
+            }
+            String replacement = "invoke-static " + methodRegisters + ", " + method;
 
-                StringBuffer fileCopy = getStringBufferFromFile(file);
-
-                StringBuilder newFile = new StringBuilder();
-                StringBuilder temp = new StringBuilder();
-
-                Pattern pattern = Pattern.compile("\\.class (.*) (L.*;)(?s).*\\.source \"(.*?)\"");
-                Matcher matcher = pattern.matcher(fileCopy.toString());
-
-                if (!matcher.find())
-                    continue;
-
-                // We set a maximum of methods to be added to a class because me may hit the limit before we modify a
-                // reasonable number of classes if we substituted every method we found
-                int count = 0;
-                ArrayList<String> pVFields = getPrivateVolatileFields(fileCopy.toString());
-                // We want to know if the class is public, because if it isn't we can't keep the new methods introduced to
-                // reference them in other classes
-                boolean isPublic = matcher.group(1).contains("public");
-                String currentClass = matcher.group(2);
-                // If the class is not public we can't reference the methods we create from other classes, but because
-                // some big classes are divided in multiple smali files, we can still invoke a method of a non-public
-                // class if the current class has the same source
-                String source = matcher.group(3);
-
-                // group(1) is the type of invocation: static for static methods or virtual
-                // group(2) contains the registers we're passing as parameters for the call
-                // group(3) is the name of the class whose method we're invoking
-                // group(4) is the name of the method
-                // group(5) contains the parameters of the method we're calling
-                // group(6) and group(7) are nullable and indicate return type of the call (if group(5) is not null then the
-                // return type is void, else the return type is indicated by group(6))
-                pattern = Pattern.compile("invoke-(virtual|static) (\\{.*}), (.*;)->(.*)\\((.*)\\)(V)?(.*)?");
-                matcher = pattern.matcher(fileCopy.toString());
-                while (matcher.find() && methodNumber < limit && count < 3) {
-                    String invocationType = matcher.group(1);
-                    String methodRegisters = matcher.group(2);
-                    String methodClass = matcher.group(3);
-                    String methodName = matcher.group(4);
-                    String methodParameters = matcher.group(5);
-                    String methodReturnType = matcher.group(6) != null ? matcher.group(6) : matcher.group(7);
-                    String invocation = methodClass + "->" + methodName + "(" + methodParameters + ")" + methodReturnType;
-                    boolean newMethod = true;
-                    String method;
-                    if (!pVFields.isEmpty() && checkRegisters(fileCopy.substring(0, matcher.start()), methodRegisters, pVFields))
-                        continue;
-                    if (indirectMethods.containsKey(invocation) || indirectMethods.containsKey(source + invocation)) {
-                        method = indirectMethods.get(invocation);
-                        if (method == null)
-                            method = indirectMethods.get(source + invocation);
-                        newMethod = false;
-                    } else {
-                        method = currentClass + "->method" + methodNumber + "(" + (invocationType.equals("virtual") ? methodClass : "") + methodParameters + ")" + methodReturnType;
-                        // We want to save the invocation including the source only if our class is not public, so only
-                        // classes with the same source can then invoke this method
-                        indirectMethods.put(isPublic ? invocation : source + invocation, method);
-                    }
-                    String replacement = "invoke-static " + methodRegisters + ", " + method;
-
-                    matcher.appendReplacement(newFile, Matcher.quoteReplacement(replacement));
-
-                    if (!newMethod)
-                        continue;
+            matcher.appendReplacement(newFile, Matcher.quoteReplacement(replacement));
 
-                    int locals;
-                    String returnType;
-                    if (methodReturnType.equals("V")) {
-                        locals = 0;
-                        returnType = "-void" + LS;
-                    } else if (methodReturnType.equals("J") || methodReturnType.equals("D")) {
-                        locals = 2;
-                        returnType = "-wide v0" + LS;
-                    } else {
-                        locals = 1;
-                        if (methodReturnType.startsWith("L") || methodReturnType.startsWith("[")) {
-                            returnType = "-object v0" + LS;
-                        } else {
-                            returnType = " v0" + LS;
-                        }
-                    }
-
-                    temp.append(".method public static method").append(methodNumber).append("(").append((invocationType.equals("virtual") ? methodClass : "")).append(methodParameters).append(")").append(methodReturnType).append(LS);
-
-                    temp.append(TAB).append(".locals ").append(locals).append(LS).append(LS);
-                    temp.append(TAB).append("invoke-").append(invocationType).append(" {");
-                    int numParameters = occurrences(methodRegisters);
-                    for (int i = 0; i < numParameters; i++) {
-                        temp.append("p").append(i).append(i == numParameters - 1 ? "" : ", ");
-                    }
-                    temp.append("}, ").append(invocation).append(LS).append(LS);
-                    if (!methodReturnType.equals("V")) {
-                        temp.append(TAB).append("move-result").append(returnType).append(LS);
-                    }
-                    temp.append(TAB).append("return").append(returnType);
-                    temp.append(".end method").append(LS).append(LS);
-                    methodNumber++;
-                    count++;
+            if (!newMethod)
+                continue;
+
+            String methodSignature = method.substring(method.indexOf("->") + 2);
+            temp.append(createStub(methodSignature, invocationType, occurrences(methodRegisters), invocation, methodReturnType));
+            count++;
+        }
+        matcher.appendTail(newFile);
+
+        newFile.append(LS).append(temp);
+        return newFile.toString();
+    }
+
+    /**
+     * Generates a static method performing an invocation
+     *
+     * @param methodSignature  name, parameters and return type of the new method
+     * @param invocationType   static or virtual, type of the invocation performed
+     * @param numParameters    number of registers passed to the invocation
+     * @param invocation       method invoked
+     * @param methodReturnType return type of the method invoked
+     * @return the code of the method
+     */
+    private static String createStub(String methodSignature, String invocationType, int numParameters, String invocation,
+                                     String methodReturnType) {
+        StringBuilder temp = new StringBuilder();
+        int locals;
+        String returnType;
+        if (methodReturnType.equals("V")) {
+            locals = 0;
+            returnType = "-void" + LS;
+        } else if (methodReturnType.equals("J") || methodReturnType.equals("D")) {
+            locals = 2;
+            returnType = "-wide v0" + LS;
+        } else {
+            locals = 1;
+            if (methodReturnType.startsWith("L") || methodReturnType.startsWith("[")) {
+                returnType = "-object v0" + LS;
+            } else {
+                returnType = " v0" + LS;
+            }
+        }
+
+        temp.append(".method public static ").append(methodSignature).append(LS);
+
+        temp.append(TAB).append(".locals ").append(locals).append(LS).append(LS);
+        temp.append(TAB).append("invoke-").append(invocationType).append(" {");
+        for (int i = 0; i < numParameters; i++) {
+            temp.append("p").append(i).append(i == numParameters - 1 ? "" : ", ");
+        }
+        temp.append("}, ").append(invocation).append(LS).append(LS);
+        if (!methodReturnType.equals("V")) {
+            temp.append(TAB).append("move-result").append(returnType).append(LS);
+        }
+        temp.append(TAB).append("return").append(returnType);
+        temp.append(".end method").append(LS).append(LS);
+        return temp.toString();
+    }
+
+    /**
+     * Returns the stub performing an invocation in the trampoline classes of the directory, adding it if the invocation
+     * has none yet; the stub declares a method in the dex file, which already references the method invoked
+     *
+     * @return the reference to the stub, or null if the dex file has no room for it
+     */
+    private String getDexStub(DirState state, String invocationType, String methodClass, String methodParameters,
+                              String methodReturnType, String invocation, int numParameters) {
+        if (state.trampolines == null)
+            return null;
+        return state.indirectMethods.computeIfAbsent(invocation, _ -> state.trampolines.add(1, invocationType,
+                methodClass, methodParameters, methodReturnType, invocation, numParameters));
+    }
+
+    /**
+     * Returns the stub performing an invocation in the trampoline classes of the new dex files, adding it if the
+     * invocation has none yet, and reserves the reference to the stub in the dex file of the directory the first time
+     * one of its classes invokes it
+     *
+     * @return the reference to the stub, or null if either dex file has no room for it
+     */
+    private String getOverflowStub(DirState state, String invocationType, String methodClass, String methodParameters,
+                                   String methodReturnType, String invocation, int numParameters) {
+        if (!budget.reserveMethods(state.budgetDir, 1))
+            return null;
+        String stub = overflowStubs.computeIfAbsent(invocation, _ -> {
+            Trampolines current = overflowTrampolines;
+            while (true) {
+                if (current != null) {
+                    String added = current.add(METHODS_PER_OVERFLOW_STUB, invocationType, methodClass, methodParameters,
+                            methodReturnType, invocation, numParameters);
+                    if (added != null)
+                        return added;
                 }
-                matcher.appendTail(newFile);
+                current = nextOverflowTrampolines(current);
+                if (current == null)
+                    return null;
+            }
+        });
+        // Another file of the directory may have referenced the stub in the meantime
+        if (stub == null || state.indirectMethods.putIfAbsent(invocation, stub) != null)
+            budget.releaseMethods(state.budgetDir, 1);
+        return stub;
+    }
 
-                newFile.append(LS).append(temp);
+    /**
+     * Moves on to the next smali directory following the ones of the APK once the current one is full, adding its dex
+     * file to the budget
+     *
+     * @param full trampoline classes of the directory found full, null if none was opened yet
+     * @return the trampoline classes of the directory to use, or null if there are no smali directories
+     */
+    synchronized private Trampolines nextOverflowTrampolines(Trampolines full) {
+        // Another thread moved on already
+        if (overflowTrampolines != full)
+            return overflowTrampolines;
+        if (smaliRoots.isEmpty())
+            return null;
+        if (overflowDex == 0) {
+            for (Path root : smaliRoots)
+                overflowDex = Math.max(overflowDex, dexIndex(root));
+        }
+        overflowDex++;
+        Path root = smaliRoots.first().resolveSibling("smali_classes" + overflowDex);
+        // A directory created by a previous execution on the same variant is reused as long as it has room
+        budget.addDir(root.toString(), DexBudget.METHOD_LIMIT);
+        overflowTrampolines = new Trampolines(root, budget.findDir(root.toString()));
+        trampolines.add(overflowTrampolines);
+        return overflowTrampolines;
+    }
+
+    /**
+     * Checks whether a trampoline class can invoke a method, which requires both the method and the class referenced
+     * by the invocation to be public
+     *
+     * @param methodClass class referenced by the invocation
+     * @param signature   name, parameters and return type of the method
+     * @return true if the method can be invoked from another package
+     */
+    private boolean isPublicTarget(String methodClass, String signature) {
+        String key = methodClass + "->" + signature;
+        Boolean isPublic = publicTargets.get(key);
+        if (isPublic == null) {
+            isPublic = checkPublicTarget(methodClass, signature);
+            publicTargets.put(key, isPublic);
+        }
+        return isPublic;
+    }
 
-                File f = new File(file);
-                FileOutputStream fos = new FileOutputStream(f);
-                OutputStreamWriter out = new OutputStreamWriter(fos, CHAR_ENCODING);
-                out.append(newFile.toString());
-                out.close();
+    private boolean checkPublicTarget(String methodClass, String signature) {
+        String className = methodClass;
+        // The method can be declared by a superclass of the class referenced
+        for (int depth = 0; className != null && depth < 32; depth++) {
+            String file = findClassFile(className);
+            // A class outside the APK belongs to the platform. If the invocation references it directly, the method is
+            // public, as the protected methods of the platform can only be invoked by the app through a reference to
+            // one of its own subclasses. A method inherited by a class of the APK can instead be protected (e.g.
+            // View.setMeasuredDimension or Object.clone), so it is public only if the JVM declares it public; the
+            // classes missing from the JVM, like the ones of the Android framework, are treated as non-public
+            if (file == null)
+                return depth == 0 || isPublicPlatformMethod(className, signature);
+            SmaliClass smaliClass;
+            try {
+                smaliClass = SmaliClass.parse(readFile(file));
+            } catch (IOException | IllegalArgumentException e) {
+                return false;
+            }
+            if (depth == 0 && !smaliClass.isPublic())
+                return false;
+            for (SmaliMethod method : smaliClass.getMethods()) {
+                if (method.getSignature().equals(signature))
+                    return method.getAccessFlags().contains("public");
             }
-            System.out.println("Number of methods added " + methodNumber);
+            className = smaliClass.getSuperClass();
         }
+        return false;
+    }
+
+    /**
+     * Checks through reflection whether a class of the JVM, e.g. Ljava/lang/Object;, declares or inherits a public
+     * method
+     *
+     * @param className name of the class
+     * @param signature name, parameters and return type of the method
+     * @return true if the method is public, false if it is not or the class is not part of the JVM
+     */
+    private static boolean isPublicPlatformMethod(String className, String signature) {
+        if (!className.startsWith("L") || !className.endsWith(";"))
+            return false;
+        try {
+            Class<?> platformClass = Class.forName(className.substring(1, className.length() - 1).replace('/', '.'),
+                    false, ClassLoader.getPlatformClassLoader());
+            for (Method method : platformClass.getMethods()) {
+                String descriptor = method.getName() + MethodType.methodType(method.getReturnType(),
+                        method.getParameterTypes()).toMethodDescriptorString();
+                if (descriptor.equals(signature))
+                    return true;
+            }
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * @param className name of a class, e.g. Lcom/example/MainActivity;
+     * @return the path of the smali file declaring the class, or null if the class is not part of the APK
+     */
+    private String findClassFile(String className) {
+        if (!className.startsWith("L") || !className.endsWith(";"))
+            return null;
+        String relative = className.substring(1, className.length() - 1) + ".smali";
+        for (Path root : smaliRoots) {
+            String file = root.resolve(relative).toString();
+            if (fileExists(file))
+                return file;
+        }
+        return null;
+    }
+
+    /**
+     * @return the smali directory (smali or smali_classesN) containing a directory, or null if there is none
+     */
+    private static Path findSmaliRoot(Path dir) {
+        for (Path path = dir.toAbsolutePath().normalize(); path != null; path = path.getParent()) {
+            if (path.getFileName() != null && path.getFileName().toString().matches("smali(_classes[0-9]+)?"))
+                return path;
+        }
+        return null;
+    }
+
+    /**
+     * @return the index of the dex file compiled from a smali directory, 1 for smali, n for smali_classesn
+     */
+    private static int dexIndex(Path smaliRoot) {
+        String name = smaliRoot.getFileName().toString();
+        return name.equals("smali") ? 1 : Integer.parseInt(name.substring("smali_classes".length()));
     }
 
     /**
@@ -195,45 +638,135 @@ public class CallIndirection implements Transformation {
      * because the other class can't access them
      *
      * @param classBody body of the class, whose fields we want to inspect
-     * @return an arraylist containing all names of the private volatile fields found, if any
+     * @return a set containing all names of the private volatile fields found, if any
      */
-    private ArrayList<String> getPrivateVolatileFields(String classBody) {
-        Pattern pattern = Pattern.compile("\\.field (?:private )?(?:volatile)? .*? (.*?):");
-        Matcher matcher = pattern.matcher(classBody);
-        ArrayList<String> fields = new ArrayList<>();
-        while (matcher.find()) {
-            fields.add(matcher.group(1));
+    private HashSet<String> getPrivateVolatileFields(String classBody) {
+        HashSet<String> fields = new HashSet<>();
+        SmaliClass smaliClass;
+        try {
+            smaliClass = SmaliClass.parse(classBody);
+        } catch (IllegalArgumentException e) {
+            // The class can't be parsed, so its fields are not tracked
+            return fields;
+        }
+        for (SmaliField field : smaliClass.getFields()) {
+            if (field.isPrivate() && field.isVolatile())
+                fields.add(field.getName());
         }
         return fields;
     }
 
     /**
-     * Checks that the registers initialized for that method invocation do not contain any of the private volatile
-     * fields
-     * @param trimmedClassBody body of the class trimmed not to include further invocations that may include a new
-     *                         assignment of the registers
-     * @param methodRegisters registers passed as arguments in the invocation, that need to be checked
-     * @param fields list of private volatile fields of the current class
-     * @return true if at least one register contains the value of one of the private volatile fields at the moment of
-     * invocation, false otherwise
+     * Finds the invocations passing a register that holds the name of one of the private volatile fields of the class
+     * at the moment of the invocation, e.g. AtomicIntegerFieldUpdater.newUpdater(Class, String): these calls check the
+     * class calling them, so they must not be moved to a method of another class<br>
+     * The registers of each method are followed in a single forward pass over its instructions: a register is marked
+     * when a const-string loads the name of one of the fields in it, the mark is copied by the moves and removed by any
+     * other instruction writing the register, so at each invocation checking its registers is a lookup in the set of
+     * marked registers
+     *
+     * @param classBody    body of the class
+     * @param currentClass name of the class, e.g. Lcom/example/MainActivity;
+     * @param fields       names of the private volatile fields of the class
+     * @return the offsets in the body of the invocations passing the name of at least one of the fields
      */
-    private boolean checkRegisters(String trimmedClassBody, String methodRegisters, ArrayList<String> fields) {
-        Pattern pattern = Pattern.compile("([pv][0-9]+)");
-        Matcher matcher = pattern.matcher(methodRegisters);
-        ArrayList<String> registers = new ArrayList<>();
-        while (matcher.find()) {
-            registers.add(matcher.group(1));
-        }
-        for (String register : registers) {
-            pattern = Pattern.compile(register + ", \"(.*)\"");
-            matcher = pattern.matcher(trimmedClassBody);
-            String lastOccurrence = "";
-            while (matcher.find())
-                lastOccurrence = matcher.group(1);
-            if (fields.contains(lastOccurrence))
+    private static HashSet<Integer> findInvocationsPassingFields(String classBody, Set<String> fields) {
+        HashSet<Integer> invocations = new HashSet<>();
+        HashSet<String> marked = new HashSet<>();
+        int lineStart = 0;
+        while (lineStart < classBody.length()) {
+            int lineEnd = classBody.indexOf(LS, lineStart);
+            int next = lineEnd == -1 ? classBody.length() : lineEnd + LS.length();
+            if (lineEnd == -1)
+                lineEnd = classBody.length();
+            SmaliInstruction instruction = new SmaliInstruction(classBody.substring(lineStart, lineEnd));
+            String opcode = instruction.getOpcode();
+            if (opcode.equals(".method")) {
+                marked.clear();
+            } else if (instruction.isInvoke()) {
+                if (!marked.isEmpty() && passesMarkedRegister(instruction.getRegisterList(), marked))
+                    invocations.add(lineStart + instruction.getIndentation().length());
+            } else if (!opcode.isEmpty() && Character.isLetter(opcode.charAt(0)) && writesFirstRegister(opcode)) {
+                String operands = instruction.getOperands();
+                int comma = operands.indexOf(',');
+                String destination = (comma == -1 ? operands : operands.substring(0, comma)).strip();
+                boolean mark;
+                if (opcode.equals("const-string") || opcode.equals("const-string/jumbo")) {
+                    int open = operands.indexOf('"', comma + 1);
+                    int close = operands.lastIndexOf('"');
+                    mark = comma != -1 && open != -1 && close > open
+                            && fields.contains(operands.substring(open + 1, close));
+                } else if (opcode.startsWith("move") && !opcode.startsWith("move-result") && !opcode.equals("move-exception")) {
+                    mark = comma != -1 && marked.contains(operands.substring(comma + 1).strip());
+                } else {
+                    mark = false;
+                }
+                if (mark) {
+                    marked.add(destination);
+                } else if (!marked.isEmpty()) {
+                    marked.remove(destination);
+                    // Wide values also overwrite the following register
+                    if (opcode.contains("wide"))
+                        marked.remove(nextRegister(destination));
+                }
+            }
+            lineStart = next;
+        }
+        return invocations;
+    }
+
+    /**
+     * @param opcode opcode of an instruction
+     * @return true if the instruction writes the register in its first operand
+     */
+    private static boolean writesFirstRegister(String opcode) {
+        return !opcode.startsWith("invoke-") && !opcode.startsWith("filled-new-array") && !opcode.startsWith("iput")
+                && !opcode.startsWith("sput") && !opcode.startsWith("aput") && !opcode.startsWith("if-")
+                && !opcode.startsWith("return") && !opcode.startsWith("goto") && !opcode.startsWith("monitor-")
+                && !opcode.equals("throw") && !opcode.equals("packed-switch") && !opcode.equals("sparse-switch")
+                && !opcode.equals("fill-array-data") && !opcode.equals("check-cast") && !opcode.equals("nop");
+    }
+
+    /**
+     * @param registers registers listed between the braces of an invocation, e.g. "p0, v1" or "v0 .. v5"
+     * @param marked    registers holding one of the fields
+     * @return true if one of the registers is marked
+     */
+    private static boolean passesMarkedRegister(String registers, Set<String> marked) {
+        if (registers == null)
+            return false;
+        int range = registers.indexOf("..");
+        if (range != -1) {
+            String first = registers.substring(0, range).strip();
+            String last = registers.substring(range + 2).strip();
+            if (first.length() < 2 || last.length() < 2 || first.charAt(0) != last.charAt(0))
+                return true;
+            int from = Integer.parseInt(first.substring(1));
+            int to = Integer.parseInt(last.substring(1));
+            for (int i = from; i <= to; i++) {
+                if (marked.contains(first.charAt(0) + String.valueOf(i)))
+                    return true;
+            }
+            return false;
+        }
+        for (String register : registers.split(",")) {
+            if (marked.contains(register.strip()))
                 return true;
         }
         return false;
     }
 
+    /**
+     * @return the register following the given one, e.g. v3 for v2
+     */
+    private static String nextRegister(String register) {
+        if (register.length() < 2)
+            return register;
+        try {
+            return register.charAt(0) + String.valueOf(Integer.parseInt(register.substring(1)) + 1);
+        } catch (NumberFormatException e) {
+            return register;
+        }
+    }
+
 }
@@ -1,19 +1,21 @@
 package it.unibz.obfuscationapi.Transformation.CodeReorder;
 
-import it.unibz.obfuscationapi.Transformation.Transformation;
+import it.unibz.obfuscationapi.Smali.SmaliClass;
+import it.unibz.obfuscationapi.Smali.SmaliInstruction;
+import it.unibz.obfuscationapi.Smali.SmaliMethod;
+import it.unibz.obfuscationapi.Transformation.HotCodeFilter;
+import it.unibz.obfuscationapi.Transformation.SmaliTransformation;
 import it.unibz.obfuscationapi.Utility.Utilities;
 
 import java.io.*;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static it.unibz.obfuscationapi.Utility.Utilities.*;
 
 /**
  * Class that applies the code reordering transformation to the smali files
  */
-public class CodeReorder implements Transformation {
+public class CodeReorder extends SmaliTransformation {
     private final String path;
     private final ArrayList<String> dirsToExclude;
 
@@ -40,47 +42,40 @@ public class CodeReorder implements Transformation {
         dirsToExclude.add("data");
     }
 
+    @Override
+    protected Stage getStage() {
+        return Stage.REORDERING;
+    }
+
+    @Override
+    protected String getCacheParameters() {
+        return HotCodeFilter.getCacheParameters();
+    }
+
     /**
-     * Collects the files in the {@link CodeReorder#path path} directory and applies the transformation to each one
+     * Collects the files in the {@link CodeReorder#path path} directory the transformation is applied to
      */
     @Override
-    public void obfuscate() throws IOException {
-        ArrayList<String> files = Utilities.navigateDirectoryContents(path, dirsToExclude);
-        for (String file : files) {
-            process(file);
-        }
+    protected ArrayList<String> getFiles() throws IOException {
+        return Utilities.navigateDirectoryContents(path, dirsToExclude);
     }
 
     /**
-     * Performs the code reorder transformation on a smali file
+     * Performs the code reorder transformation on a smali file, skipping the hot methods of the
+     * {@link HotCodeFilter profile}; methods containing loops are never reordered, as they contain jumps
      *
      * @param filePath path of the file to be modified
-     * @throws IOException
+     * @param text     contents of the file
+     * @return the contents of the file with the methods reordered
      */
-    private void process(String filePath) throws IOException {
-        StringBuffer text = getStringBufferFromFile(filePath);
-
-        String regex = "(# (?:virtual|direct) methods" + LS + ")?(\\.method .*" + LS + ")(?s)(.*?)(\\.end method)";
-
-        Pattern pattern = Pattern.compile(regex);
-        Matcher matcher = pattern.matcher(text.toString());
-        StringBuilder nFile = new StringBuilder();
-        while (matcher.find()) {
-
-            //smali code directives will be rewritten in the new smali file
-            String directive = matcher.group(1) != null ? matcher.group(1) : "";
-            //the old method
-            String method = matcher.group(3);
-
-            String newMethod = reorderMethod(method);
-            String replacement = directive + matcher.group(2) + newMethod + matcher.group(4);
-            matcher.appendReplacement(nFile, Matcher.quoteReplacement(replacement));
+    @Override
+    protected String process(String filePath, String text) {
+        SmaliClass smaliClass = SmaliClass.parse(text);
+        for (SmaliMethod method : smaliClass.getMethods()) {
+            if (!HotCodeFilter.isHot(smaliClass.getName(), method.getSignature()))
+                reorderMethod(method);
         }
-        matcher.appendTail(nFile);
-        FileOutputStream fos = new FileOutputStream(filePath);
-        OutputStreamWriter out = new OutputStreamWriter(fos, CHAR_ENCODING);
-        out.append(nFile.toString());
-        out.close();
+        return smaliClass.toString();
     }
 
     /**
@@ -108,95 +103,76 @@ public class CodeReorder implements Transformation {
      *      :goto i:2
      * </pre> </blockquote>
      *
-     * @param method string containing the method to which the transformation is applied
-     * @return the modified method (or the original if the transformation is not applicable)
+     * @param method the method to which the transformation is applied, left unchanged if the transformation is not
+     *               applicable
      */
-    private String reorderMethod(String method) {
+    private void reorderMethod(SmaliMethod method) {
         /*
          * in all this cases the method will be rewritten without any modification otherwise the logical operation
          * will be compromised
          */
-        if (method.contains(".end sparse-switch") || method.contains(".end packed-switch")
-                || method.contains(".end array-data") || method.contains("value = {") ||
-                method.contains(".end annotation") ||
-                (method.contains("if-eq") || method.contains("if-ne") ||
-                        method.contains("if-lt") || method.contains("if-ge") ||
-                        method.contains("if-gt") || method.contains("if-le")) || method.contains("goto") || method.contains("try_end")
+        String body = method.getBody();
+        if (body.contains(".end sparse-switch") || body.contains(".end packed-switch")
+                || body.contains(".end array-data") || body.contains("value = {") ||
+                body.contains(".end annotation") ||
+                (body.contains("if-eq") || body.contains("if-ne") ||
+                        body.contains("if-lt") || body.contains("if-ge") ||
+                        body.contains("if-gt") || body.contains("if-le")) || body.contains("goto") || body.contains("try_end")
         ) {
-            return method;
+            return;
         }
 
-        StringTokenizer st = new StringTokenizer(method, LS);
+        ArrayList<SmaliInstruction> lines = new ArrayList<>();
+        for (SmaliInstruction instruction : method.getInstructions()) {
+            if (!instruction.isBlank())
+                lines.add(instruction);
+        }
 
         // Methods with no instructions inside will be returned without any change
-        if (st.countTokens() <= 1) {
-            return method;
+        if (lines.size() <= 1) {
+            return;
         }
 
         HashMap<Integer, String> instructionsOrder = new HashMap<>();
         ArrayList<Integer> order = new ArrayList<>();
 
         int index = 0;
-        String local = st.nextToken();
-        boolean temp = false;
-        String stemp = null;
-        while (st.hasMoreTokens()) {
+        String local = lines.getFirst().toString();
+        int i = 1;
+        while (i < lines.size()) {
             /*
              * Every instruction goes into the hash map with index as a key.
-             * If an invoke instruction is found, it will be paired up with the following instruction move, otherwise an
-             * error will occur while recompiling with apktool
+             * If an instruction is followed by a move-result, they are kept together, otherwise an error will occur
+             * while recompiling with apktool
              */
-            String s;
-            if (!temp)
-                s = st.nextToken();
-            else {
-                s = stemp;
-                temp = false;
-            }
-
-            if (s.contains("invoke")) {
-                String s1 = st.nextToken();
-                if (s1.contains("move")) {
-                    index++;
-                    instructionsOrder.put(index, s + LS + s1);
-                    order.add(index);
-                } else {
-                    index++;
-                    instructionsOrder.put(index, s);
-                    order.add(index);
-                    if (!s1.contains("invoke")) {
-                        index++;
-                        instructionsOrder.put(index, s1);
-                        order.add(index);
-                    } else {
-                        stemp = s1;
-                        temp = true;
-                    }
-                }
-            } else {
-                index++;
-                instructionsOrder.put(index, s);
-                order.add(index);
+            String s = lines.get(i).toString();
+            i++;
+            if (i < lines.size() && lines.get(i).getOpcode().startsWith("move-result")) {
+                s += LS + lines.get(i);
+                i++;
             }
+            index++;
+            instructionsOrder.put(index, s);
+            order.add(index);
         }
         // We shuffle the instructions' order
         shuffleArray(order);
 
         StringBuilder newMethod = new StringBuilder();
-        newMethod.append(local).append("\n");
-        newMethod.append("\n");
-        newMethod.append("goto :i_1\n");
+        newMethod.append(local).append(LS);
+        newMethod.append(LS);
+        newMethod.append("goto :i_1").append(LS);
 
         for (int current : order) {
-            newMethod.append(":i_").append(current).append("\n");
+            newMethod.append(":i_").append(current).append(LS);
             newMethod.append(instructionsOrder.get(current));
-            newMethod.append("\n");
+            newMethod.append(LS);
             if (current < order.size()) {
                 int next = current + 1;
-                newMethod.append("goto :i_").append(next).append("\n");
+                newMethod.append("goto :i_").append(next).append(LS);
             }
         }
-        return newMethod.toString();
+        method.setBody(newMethod.toString());
     }
 
 }
@@ -0,0 +1,142 @@
+package it.unibz.obfuscationapi.Transformation;
+
+import it.unibz.obfuscationapi.Smali.SmaliWorkspace;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Class that applies a chain of transformations in a single pass: every file is read once, rewritten in memory by each
+ * transformation of the chain that applies to it, and written once<br>
+ * The transformations are applied in the order of their {@link SmaliTransformation.Stage stages}, transformations
+ * of the same stage keep the order in which they are given. The files added by a transformation (e.g. the decryption
+ * class of StringEncryption) are not processed by the other transformations of the chain
+ */
+public class CompositeTransformation extends SmaliTransformation {
+    private final List<SmaliTransformation> transformations;
+    // For each transformation, the files it is applied to, identified by their key in the workspace and paired with
+    // the path returned by the transformation, which is the one it expects to be processed with
+    private final ArrayList<HashMap<String, String>> filesByTransformation = new ArrayList<>();
+
+    /**
+     * @param transformations transformations to apply, at most one of each kind
+     * @throws IllegalArgumentException if the chain is empty or contains the same kind of transformation twice
+     */
+    public CompositeTransformation(List<SmaliTransformation> transformations) {
+        if (transformations.isEmpty())
+            throw new IllegalArgumentException("A composite transformation needs at least one transformation");
+        HashSet<Class<?>> kinds = new HashSet<>();
+        for (SmaliTransformation transformation : transformations) {
+            if (!kinds.add(transformation.getClass()))
+                throw new IllegalArgumentException(transformation.getName() + " can appear only once in a composite transformation");
+        }
+        this.transformations = transformations.stream()
+                .sorted(Comparator.comparing(SmaliTransformation::getStage))
+                .toList();
+    }
+
+    /**
+     * @return the transformations of the chain, in the order they are applied
+     */
+    public List<SmaliTransformation> getTransformations() {
+        return transformations;
+    }
+
+    /**
+     * @return the names of the transformations in the order they are applied, joined by +
+     */
+    @Override
+    public String getName() {
+        return transformations.stream().map(Transformation::getName).collect(Collectors.joining("+"));
+    }
+
+    @Override
+    protected Stage getStage() {
+        return transformations.getFirst().getStage();
+    }
+
+    /**
+     * @return the settings of all the transformations of the chain, or null if at least one of them can't be cached
+     */
+    @Override
+    protected String getCacheParameters() {
+        StringBuilder parameters = new StringBuilder();
+        for (SmaliTransformation transformation : transformations) {
+            String transformationParameters = transformation.getCacheParameters();
+            if (transformationParameters == null)
+                return null;
+            parameters.append(transformation.getClass().getName()).append('(').append(transformationParameters).append(')');
+        }
+        return parameters.toString();
+    }
+
+    @Override
+    public void obfuscate() throws Exception {
+        try {
+            super.obfuscate();
+        } finally {
+            for (SmaliTransformation transformation : transformations) {
+                transformation.setWorkspace(null);
+                transformation.setDexBudget(null);
+            }
+        }
+    }
+
+    /**
+     * Shares the workspace and the budget with the transformations of the chain and prepares each of them
+     */
+    @Override
+    protected void beforeProcessing() throws Exception {
+        for (SmaliTransformation transformation : transformations) {
+            transformation.setWorkspace(getWorkspace());
+            transformation.setDexBudget(getDexBudget());
+            transformation.beforeProcessing();
+        }
+    }
+
+    /**
+     * @return the union of the files the transformations of the chain are applied to
+     */
+    @Override
+    protected ArrayList<String> getFiles() throws IOException {
+        SmaliWorkspace workspace = getWorkspace();
+        LinkedHashMap<String, String> files = new LinkedHashMap<>();
+        filesByTransformation.clear();
+        for (SmaliTransformation transformation : transformations) {
+            HashMap<String, String> filesByKey = new HashMap<>();
+            for (String file : transformation.getFiles()) {
+                String key = workspace.key(file);
+                filesByKey.put(key, file);
+                files.putIfAbsent(key, file);
+            }
+            filesByTransformation.add(filesByKey);
+        }
+        return new ArrayList<>(files.values());
+    }
+
+    /**
+     * Passes the contents of the file through every transformation of the chain that applies to it
+     */
+    @Override
+    protected String process(String file, String content) throws Exception {
+        String key = getWorkspace().key(file);
+        for (int i = 0; i < transformations.size(); i++) {
+            String path = filesByTransformation.get(i).get(key);
+            if (path != null)
+                content = transformations.get(i).process(path, content);
+        }
+        return content;
+    }
+
+    @Override
+    protected void afterProcessing() throws Exception {
+        for (SmaliTransformation transformation : transformations)
+            transformation.afterProcessing();
+    }
+}
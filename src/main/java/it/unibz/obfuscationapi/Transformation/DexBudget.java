@@ -0,0 +1,133 @@
+package it.unibz.obfuscationapi.Transformation;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Budget of the methods that the transformations can still add to each dex file of a variant<br>
+ * A dex file can reference at most 65536 methods: the budget is initialized with the number of methods that can still
+ * be added to each smali directory, as computed by Obfuscation.getSmaliDirsByMethodLimit, and every transformation
+ * adding methods reserves them atomically before generating the code. The same budget is shared by all the transformations applied to the variant,
+ * so they can run together, and process their files concurrently, without exceeding the limits in total
+ */
+public class DexBudget {
+    /**
+     * Maximum number of methods that can be referenced by a dex file, kept below the limit of 65536 to leave room for
+     * the methods added by the build tools
+     */
+    public final static int METHOD_LIMIT = 65534;
+    // Remaining methods of each smali directory
+    private final ConcurrentHashMap<String, AtomicInteger> budgetsByDir = new ConcurrentHashMap<>();
+
+    /**
+     * @param methodsByDir number of methods that can still be added, by smali directory
+     */
+    public DexBudget(Map<String, Integer> methodsByDir) {
+        for (Map.Entry<String, Integer> entry : methodsByDir.entrySet())
+            budgetsByDir.put(key(entry.getKey()), new AtomicInteger(Math.max(0, entry.getValue())));
+    }
+
+    /**
+     * @return a budget with the same remaining methods, reserved independently of this one
+     */
+    public DexBudget copy() {
+        DexBudget copy = new DexBudget(Map.of());
+        copy.restore(this);
+        return copy;
+    }
+
+    /**
+     * Brings the budget back to the remaining methods of another one
+     *
+     * @param budget budget to copy, e.g. a {@link DexBudget#copy() copy} of this one
+     */
+    public void restore(DexBudget budget) {
+        budgetsByDir.clear();
+        budget.budgetsByDir.forEach((dir, methods) -> budgetsByDir.put(dir, new AtomicInteger(methods.get())));
+    }
+
+    /**
+     * Adds to the budget the directory of a new dex file, e.g. a smali directory created by a transformation to hold
+     * the classes it generates; nothing changes if the directory is already part of the budget
+     *
+     * @param dir     smali directory of the new dex file
+     * @param methods number of methods that can be added to the dex file
+     * @return true if the directory was added, false if it was already part of the budget
+     */
+    public boolean addDir(String dir, int methods) {
+        return budgetsByDir.putIfAbsent(key(dir), new AtomicInteger(Math.max(0, methods))) == null;
+    }
+
+    /**
+     * Returns the directory of the budget containing a file or directory, the innermost one if they are nested
+     *
+     * @param file path of the file or directory
+     * @return the directory, or null if the file is not contained in any directory of the budget
+     */
+    public String findDir(String file) {
+        Path path = Paths.get(key(file));
+        String dir = null;
+        for (String candidate : budgetsByDir.keySet()) {
+            if (path.startsWith(candidate) && (dir == null || candidate.length() > dir.length()))
+                dir = candidate;
+        }
+        return dir;
+    }
+
+    /**
+     * Reserves methods in the dex file of a directory
+     *
+     * @param dir   directory of the budget, see {@link DexBudget#findDir(String) findDir}
+     * @param count number of methods to add
+     * @return true if the methods were reserved, false if they would exceed the limit of the dex file
+     */
+    public boolean reserveMethods(String dir, int count) {
+        AtomicInteger remaining = get(dir);
+        if (remaining == null)
+            return false;
+        while (true) {
+            int current = remaining.get();
+            if (current < count)
+                return false;
+            if (remaining.compareAndSet(current, current - count))
+                return true;
+        }
+    }
+
+    /**
+     * Gives back methods reserved but not added
+     *
+     * @param dir   directory of the budget
+     * @param count number of methods to give back
+     */
+    public void releaseMethods(String dir, int count) {
+        AtomicInteger remaining = get(dir);
+        if (remaining != null)
+            remaining.addAndGet(count);
+    }
+
+    /**
+     * @param dir directory of the budget
+     * @return the number of methods that can still be added, 0 if the directory is not part of the budget
+     */
+    public int getRemainingMethods(String dir) {
+        AtomicInteger remaining = get(dir);
+        return remaining == null ? 0 : remaining.get();
+    }
+
+    public Set<String> getDirs() {
+        return Set.copyOf(budgetsByDir.keySet());
+    }
+
+    private AtomicInteger get(String dir) {
+        return dir == null ? null : budgetsByDir.get(key(dir));
+    }
+
+    private static String key(String dir) {
+        return Paths.get(dir).toAbsolutePath().normalize().toString();
+    }
+}
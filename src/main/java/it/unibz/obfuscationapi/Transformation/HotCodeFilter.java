@@ -0,0 +1,230 @@
+package it.unibz.obfuscationapi.Transformation;
+
+import it.unibz.obfuscationapi.Smali.SmaliInstruction;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static it.unibz.obfuscationapi.Utility.Utilities.LS;
+
+/**
+ * Filter of the hot code of the APK, left untouched by the transformations whose code costs time at runtime
+ * (CallIndirection, AdvancedReflection, ArithmeticBranching, CodeReorder and Insertion), so that the variants keep a
+ * runtime close to the one of the original APK<br>
+ * The code is hot if it belongs to a method of the profile, loaded from a file or set directly, or if it is the body of
+ * a loop, when {@link HotCodeFilter#setSkipLoops(boolean) skipLoops} is enabled: the loops are detected statically as
+ * the instructions between a label and a jump going back to it. The filter is shared by all the transformations and is
+ * disabled until a profile is set or loops are skipped
+ */
+public class HotCodeFilter {
+    private static volatile Set<String> hotMethods = Set.of();
+    private static volatile boolean skipLoops;
+    private static volatile String cacheParameters = "";
+
+    /**
+     * Loads the profile of the hot methods from a file containing one entry per line, optionally followed by a count
+     * (e.g. the number of calls or the time spent in the method, taken from a method trace of a run of the original
+     * APK); empty lines and lines starting with # are ignored<br>
+     * An entry is either a method (Lcom/example/MainActivity;->onDraw(Landroid/graphics/Canvas;)V), a method name
+     * covering all its overloads (Lcom/example/MainActivity;->onDraw) or a class covering all its methods
+     * (Lcom/example/MainActivity;)
+     *
+     * @param file     path of the profile
+     * @param minCount minimum count of the entries considered hot, the entries without a count are always hot
+     * @throws IOException if the profile can't be read or a count is not a number
+     */
+    synchronized public static void loadProfile(String file, long minCount) throws IOException {
+        HashSet<String> methods = new HashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] tokens = line.split("\\s+");
+                try {
+                    if (tokens.length == 1 || Long.parseLong(tokens[1]) >= minCount)
+                        methods.add(tokens[0]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid count in the profile " + file + ": " + line, e);
+                }
+            }
+        }
+        setHotMethods(methods);
+    }
+
+    /**
+     * @param methods entries of the profile, in the format described in
+     *                {@link HotCodeFilter#loadProfile(String, long) loadProfile}
+     */
+    synchronized public static void setHotMethods(Collection<String> methods) {
+        hotMethods = Set.copyOf(methods);
+        updateCacheParameters();
+    }
+
+    /**
+     * @param skipLoops true to leave the bodies of the loops untouched
+     */
+    synchronized public static void setSkipLoops(boolean skipLoops) {
+        HotCodeFilter.skipLoops = skipLoops;
+        updateCacheParameters();
+    }
+
+    /**
+     * Disables the filter, clearing the profile and no longer skipping the loops
+     */
+    synchronized public static void clear() {
+        hotMethods = Set.of();
+        skipLoops = false;
+        updateCacheParameters();
+    }
+
+    public static boolean isSkippingLoops() {
+        return skipLoops;
+    }
+
+    /**
+     * @return the settings of the filter, to be added to the cache parameters of the transformations using it, empty
+     * if the filter is disabled
+     */
+    public static String getCacheParameters() {
+        return cacheParameters;
+    }
+
+    private static void updateCacheParameters() {
+        cacheParameters = hotMethods.isEmpty() && !skipLoops ? ""
+                : " hot " + hotMethods.size() + ":" + digest(hotMethods) + (skipLoops ? " loops" : "");
+    }
+
+    /**
+     * @param methods entries of the profile
+     * @return the SHA-256 of the sorted entries, each followed by a newline, so that different profiles never share
+     * the cached files
+     */
+    private static String digest(Set<String> methods) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String method : new TreeSet<>(methods)) {
+                digest.update(method.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param className name of the class, e.g. Lcom/example/MainActivity;
+     * @param signature name, parameters and return type of the method, e.g. onCreate(Landroid/os/Bundle;)V
+     * @return true if the method, its name or its class is part of the profile
+     */
+    public static boolean isHot(String className, String signature) {
+        Set<String> methods = hotMethods;
+        if (methods.isEmpty())
+            return false;
+        int open = signature.indexOf('(');
+        return methods.contains(className) || methods.contains(className + "->" + signature)
+                || (open != -1 && methods.contains(className + "->" + signature.substring(0, open)));
+    }
+
+    /**
+     * Finds the instructions that belong to the body of a loop: a jump (goto or if) to a label preceding it closes a
+     * loop starting at the label
+     *
+     * @param instructions instructions of a method
+     * @return for each instruction, true if it is inside a loop
+     */
+    public static boolean[] findLoops(List<SmaliInstruction> instructions) {
+        HashMap<String, Integer> labels = new HashMap<>();
+        // Number of loops opening minus the number of loops closing at each instruction
+        int[] depth = new int[instructions.size() + 1];
+        for (int i = 0; i < instructions.size(); i++) {
+            SmaliInstruction instruction = instructions.get(i);
+            if (instruction.isLabel()) {
+                labels.put(instruction.getOpcode(), i);
+            } else if (instruction.getOpcode().startsWith("goto") || instruction.getOpcode().startsWith("if-")) {
+                Integer label = labels.get(instruction.getLastOperand());
+                if (label != null) {
+                    depth[label]++;
+                    depth[i + 1]--;
+                }
+            }
+        }
+        boolean[] loops = new boolean[instructions.size()];
+        int current = 0;
+        for (int i = 0; i < instructions.size(); i++) {
+            current += depth[i];
+            loops[i] = current > 0;
+        }
+        return loops;
+    }
+
+    /**
+     * Finds the invocations of a smali file that belong to hot code, i.e. to a method of the profile or, if loops are
+     * skipped, to the body of a loop
+     *
+     * @param classBody contents of the smali file
+     * @return the offsets of the opcodes of the hot invocations in the contents of the file
+     */
+    public static HashSet<Integer> findHotInvocations(String classBody) {
+        HashSet<Integer> invocations = new HashSet<>();
+        if (hotMethods.isEmpty() && !skipLoops)
+            return invocations;
+        String className = "";
+        boolean inMethod = false;
+        boolean hot = false;
+        ArrayList<SmaliInstruction> instructions = new ArrayList<>();
+        ArrayList<Integer> offsets = new ArrayList<>();
+        int lineStart = 0;
+        while (lineStart < classBody.length()) {
+            int lineEnd = classBody.indexOf(LS, lineStart);
+            int next = lineEnd == -1 ? classBody.length() : lineEnd + LS.length();
+            if (lineEnd == -1)
+                lineEnd = classBody.length();
+            SmaliInstruction instruction = new SmaliInstruction(classBody.substring(lineStart, lineEnd));
+            String opcode = instruction.getOpcode();
+            int offset = lineStart + instruction.getIndentation().length();
+            if (opcode.equals(".class")) {
+                className = instruction.getOperands().substring(instruction.getOperands().lastIndexOf(' ') + 1);
+            } else if (opcode.equals(".method")) {
+                String operands = instruction.getOperands();
+                hot = isHot(className, operands.substring(operands.lastIndexOf(' ') + 1));
+                inMethod = true;
+                instructions.clear();
+                offsets.clear();
+            } else if (inMethod && opcode.equals(".end") && instruction.getOperands().equals("method")) {
+                if (!hot && skipLoops) {
+                    boolean[] loops = findLoops(instructions);
+                    for (int i = 0; i < loops.length; i++) {
+                        if (loops[i] && instructions.get(i).isInvoke())
+                            invocations.add(offsets.get(i));
+                    }
+                }
+                inMethod = false;
+            } else if (inMethod) {
+                if (hot && instruction.isInvoke())
+                    invocations.add(offset);
+                else if (!hot && skipLoops) {
+                    instructions.add(instruction);
+                    offsets.add(offset);
+                }
+            }
+            lineStart = next;
+        }
+        return invocations;
+    }
+}
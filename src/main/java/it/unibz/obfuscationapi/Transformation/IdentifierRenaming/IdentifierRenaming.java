@@ -1,6 +1,6 @@
 package it.unibz.obfuscationapi.Transformation.IdentifierRenaming;
 
-import it.unibz.obfuscationapi.Transformation.Transformation;
+import it.unibz.obfuscationapi.Transformation.SmaliTransformation;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -15,7 +15,7 @@ import static it.unibz.obfuscationapi.Utility.Utilities.*;
 /**
  * Class that applies the renaming transformation: can rename the package of the application or the name of the classes
  */
-public class IdentifierRenaming implements Transformation {
+public class IdentifierRenaming extends SmaliTransformation {
 
     private final ArrayList<File> fileList = new ArrayList<>();
     private String packageIdentifier;
@@ -24,6 +24,7 @@ public class IdentifierRenaming implements Transformation {
     private final String manifestPath;
     private StringBuffer manifestFile;
     private String operation;
+    private String newPkgName;
     public String modifiedPkgName;
     public String newMainClassName;
 
@@ -68,21 +69,21 @@ public class IdentifierRenaming implements Transformation {
     }
 
     /**
-     * Applies the selected transformation to the project
-     * @throws IOException
+     * Checks the operation, generates the new name of the package and changes the xml files in the res folder, then
+     * generates a new name for every class of the package, so that the smali files can be processed concurrently
+     * @throws IOException if the operation is not supported or the files can't be read
      */
     @Override
-    public void obfuscate() throws IOException {
+    protected void beforeProcessing() throws IOException {
         if (!operation.equals("renamePackage") && !operation.equals("renameClass") && !operation.equals("all")) {
             throw new IOException(operation + " is not a supported operation");
         }
-        File f = new File(path);
-        FileOutputStream fos;
-        OutputStreamWriter out;
-        StringBuffer fileCopy;
+        // The manifest is read again from the workspace, so that every execution starts from its current contents
+        manifestFile = new StringBuffer(readFile(manifestPath));
+        setPackageIdentifier(manifestFile);
 
         // Generating random name for package
-        String newPkgName = generateRandomString(5, null);
+        newPkgName = generateRandomString(5, null);
         modifiedPkgName = packageIdentifier.substring(0, packageIdentifier.lastIndexOf('/')) + "/" + newPkgName;
         if (operation.equals("renamePackage") || operation.equals("all")) {
             // Look for xml files in the res folder
@@ -91,17 +92,15 @@ public class IdentifierRenaming implements Transformation {
             addFiles(fxml, ".xml");
             // We change every occurrence of the package with the new package name
             for (File file : fileList) {
-                fileCopy = getStringBufferFromFile(file.getPath());
+                StringBuffer fileCopy = new StringBuffer(readFile(file.getPath()));
                 fileCopy = changeXmlPackageName(fileCopy, packageIdentifier.substring(packageIdentifier.lastIndexOf("/") + 1), newPkgName);
-                fos = new FileOutputStream(file.getPath());
-                out = new OutputStreamWriter(fos, CHAR_ENCODING);
-                out.append(fileCopy);
-                out.close();
+                writeFile(file.getPath(), fileCopy.toString());
             }
         }
 
         fileList.clear();
-        addFiles(f, ".smali");
+        addFiles(new File(path), ".smali");
+        classes.clear();
         if (operation.equals("renameClass") || operation.equals("all")) {
             // Generate a new name for every class
             for (File fi : fileList) {
@@ -117,40 +116,54 @@ public class IdentifierRenaming implements Transformation {
                 }
             }
         }
+    }
+
+    @Override
+    protected Stage getStage() {
+        return Stage.RENAMING;
+    }
 
+    @Override
+    protected ArrayList<String> getFiles() {
+        ArrayList<String> files = new ArrayList<>();
         for (File file : fileList) {
-            fileCopy = getStringBufferFromFile(file.getPath());
+            files.add(file.getPath());
+        }
+        return files;
+    }
 
-            if (operation.equals("renameClass") || operation.equals("all")) {
-                // We change the occurrences of a class with its new name
-                fileCopy = changeFileClassName(fileCopy, file);
-            }
-            if (operation.equals("renamePackage") || operation.equals("all")) {
-                try {
-                    // We change the occurrences of the package with the new package name
-                    fileCopy = changeFilePackageName(fileCopy, newPkgName);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-            // Modify the smali file
-            fos = new FileOutputStream(file.getPath());
-            out = new OutputStreamWriter(fos, CHAR_ENCODING);
-            out.append(fileCopy);
-            out.close();
+    /**
+     * Applies the selected renaming to a smali file
+     * @param file    path of the smali file
+     * @param content contents of the file
+     * @return the contents of the file with the classes and/or the package renamed
+     */
+    @Override
+    protected String process(String file, String content) {
+        StringBuffer fileCopy = new StringBuffer(content);
+        if (operation.equals("renameClass") || operation.equals("all")) {
+            // We change the occurrences of a class with its new name
+            fileCopy = changeFileClassName(fileCopy, new File(file));
         }
-        // Lastly we change the manifest file to update the name of the main class and/or the name of the package
+        if (operation.equals("renamePackage") || operation.equals("all")) {
+            // We change the occurrences of the package with the new package name
+            fileCopy = changeFilePackageName(fileCopy, newPkgName);
+        }
+        return fileCopy.toString();
+    }
+
+    /**
+     * Lastly changes the manifest file to update the name of the main class and/or the name of the package
+     */
+    @Override
+    protected void afterProcessing() {
         if (operation.equals("renameClass") || operation.equals("all"))
             changeManifestMainClass();
 
         if (operation.equals("renamePackage") || operation.equals("all"))
             manifestFile = changeXmlPackageName(manifestFile, packageIdentifier.substring(packageIdentifier.lastIndexOf("/") + 1), newPkgName);
 
-        fos = new FileOutputStream(manifestPath);
-        out = new OutputStreamWriter(fos, CHAR_ENCODING);
-        out.append(manifestFile.toString());
-        out.close();
-
+        writeFile(manifestPath, manifestFile.toString());
     }
 
     /**
@@ -1,6 +1,10 @@
 package it.unibz.obfuscationapi.Transformation.JunkInsertion.Insertion;
 
-import it.unibz.obfuscationapi.Transformation.Transformation;
+import it.unibz.obfuscationapi.Smali.SmaliClass;
+import it.unibz.obfuscationapi.Smali.SmaliInstruction;
+import it.unibz.obfuscationapi.Smali.SmaliMethod;
+import it.unibz.obfuscationapi.Transformation.HotCodeFilter;
+import it.unibz.obfuscationapi.Transformation.SmaliTransformation;
 import it.unibz.obfuscationapi.Utility.Utilities;
 
 import java.io.*;
@@ -8,15 +12,13 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static it.unibz.obfuscationapi.Utility.Utilities.*;
 
 /**
  * Applies insertion of junk instructions to smali files
  */
-public class Insertion implements Transformation {
+public class Insertion extends SmaliTransformation {
     final static String COMPOUND_DELIM = "*";
     private final ArrayList<String> dirsToExclude;
     private final String path;
@@ -24,8 +26,6 @@ public class Insertion implements Transformation {
 
     private final ArrayList<String> junkInstr;
 
-    private int tmpCounter = 0; // used to ensure the uniqueness of the jump labels
-
     public Insertion(String path) {
         this.path = path;
         this.dirsToExclude = new ArrayList<>(List.of("android", "adwo", "google"));
@@ -89,124 +89,114 @@ public class Insertion implements Transformation {
         return als;
     }
 
+    @Override
+    protected Stage getStage() {
+        return Stage.JUNK;
+    }
+
+    @Override
+    protected String getCacheParameters() {
+        return HotCodeFilter.getCacheParameters();
+    }
+
     /**
-     * Applies the junk code insertion transformation to the decompiled APK
+     * @return the files under {@link Insertion#path path} the junk code insertion is applied to
      */
-    public void obfuscate() {
-        ArrayList<String> files;
-        try {
-            files = Utilities.navigateDirectoryContents(path, dirsToExclude);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        for (String file : files) {
-            try {
-                process(file);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
+    @Override
+    protected ArrayList<String> getFiles() throws IOException {
+        return Utilities.navigateDirectoryContents(path, dirsToExclude);
     }
 
     /**
      * Applies the junk insertion to the specified file
      *
-     * @param path path of the file to process
-     * @throws IOException if out append() or close() fail or see {@link Utilities#getStringBufferFromFile(String)}
+     * @param path    path of the file to process
+     * @param content contents of the file
+     * @return the contents of the file with the junk code inserted
      */
-    private void process(String path) throws IOException {
-        // StringBuffer from file
-        StringBuffer fileCopy = getStringBufferFromFile(path);
-
-        // substitute
-        StringBuffer nsb = garbage(fileCopy);
-
-        //rewrite file
-        FileOutputStream fos = new FileOutputStream(path);
-        OutputStreamWriter out = new OutputStreamWriter(fos, CHAR_ENCODING);
-        out.append(nsb.toString());
-        out.close();
+    @Override
+    protected String process(String path, String content) {
+        return garbage(content);
     }
 
     /**
-     * This method accepts the StringBuffer containing the smali file and reads through it inserting the garbage code
+     * This method accepts the String containing the smali file and goes through its methods inserting the garbage
+     * code
      * <br>
-     * Once a match is found for the pattern, if canAddGarbage flag is true, then we can add garbage instructions such
-     * as useless conditional jumps. Only after we match the locals pattern, and we insert our new registers, we can
-     * ensure that all other junk instructions will work
+     * Only in the methods with at most 5 local registers we allocate 3 new registers, initializing them right after
+     * the .locals directive, which ensures that all other junk instructions will work; we then add garbage
+     * instructions such as useless conditional jumps before the first invocation of the method
+     * <br>
+     * The hot methods of the {@link HotCodeFilter profile} are skipped, and if loops are skipped the jumps are inserted
+     * before the first invocation outside of the loops
      *
-     * @param sb StringBuffer containing the smali code
-     * @return the StringBuffer with the modified code
+     * @param content String containing the smali code
+     * @return the String with the modified code
      */
-    private StringBuffer garbage(StringBuffer sb) {
-        Pattern pattern = Pattern.compile("(.locals )([0-9]*)|(invoke-)|(.end method)");
-        Matcher matcher = pattern.matcher(sb.toString());
-        ArrayList<String> newRegs = new ArrayList<>();
-        StringBuffer nFile = new StringBuffer();
-        boolean canAddGarbage = false;
-        while (matcher.find()) {
-            if (matcher.group(1) != null) // .locals
-            {
-                int nLocals = Integer.parseInt(matcher.group(2));
-
-                if (nLocals <= 5) {
-                    int newLocals = nLocals + 3;
-                    String regDirective = matcher.group(1) + newLocals + LS;
-
-                    newRegs = new ArrayList<>();
-                    newRegs.add("v" + (nLocals));
-                    newRegs.add("v" + (nLocals + 1));
-                    newRegs.add("v" + (nLocals + 2));
-
-                    ArrayList<String> replacementContentFirst = new ArrayList<>();
-                    // at least 3 initializations, one for each allocated register
-                    replacementContentFirst.add(oneRegConst(newRegs.get(0)));
-                    replacementContentFirst.add(oneRegConst(newRegs.get(1)));
-                    replacementContentFirst.add(oneRegConst(newRegs.get(2)));
-
-                    // a register can be initialized multiple times
-                    for (int i = 0; i < randInt(1, 10); i++)
-                        replacementContentFirst.add(oneRegConst(newRegs.get(randInt(0, newRegs.size() - 1))));
-                    // adding lines of junk code that use the instantiated registers
-                    for (int i = 0; i < randInt(1, 10); i++)
-                        replacementContentFirst.add(twoReg(junkInstr.get(randInt(0, 5)), newRegs.get(randInt(1, newRegs.size() - 1)), newRegs.get(randInt(0, newRegs.size() - 1))));
-
-                    StringBuilder replacement = new StringBuilder(regDirective);
-                    for (String s : replacementContentFirst)
-                        replacement.append(s);
-
-                    canAddGarbage = true;
-                    matcher.appendReplacement(nFile, replacement.toString());
-                }
-            } else if (matcher.group(3) != null) // invoke-
-            {
-                if (canAddGarbage) // the registers were allocated in this method, so now we can add the following junk code
-                {
-                    ArrayList<String> replacementContentSecond = new ArrayList<>();
-
-                    for (int i = 0; i < randInt(1, 10); i++)
-                        replacementContentSecond.add(twoReg(junkInstr.get(randInt(0, 5)), newRegs.get(randInt(0, newRegs.size() - 1)), newRegs.get(randInt(0, newRegs.size() - 1))));
-                    for (int i = 0; i < randInt(1, 10); i++)
-                        replacementContentSecond.add(twoRegJump(junkInstr.get(randInt(6, junkInstr.size() - 1)), newRegs.get(randInt(0, newRegs.size() - 1)), newRegs.get(randInt(0, newRegs.size() - 1))));
-
-                    StringBuilder replacement = new StringBuilder();
-                    for (String s : replacementContentSecond)
-                        replacement.append(s);
-
-                    replacement.append(LS);
-                    matcher.appendReplacement(nFile, replacement + matcher.group(3));
-
-                    canAddGarbage = false;
-                }
-            } else // end-method
-            {
-                canAddGarbage = false;
+    private String garbage(String content) {
+        SmaliClass smaliClass = SmaliClass.parse(content);
+        // Jump labels only need to be unique inside a method, so a counter local to the file is enough and lets the
+        // files be processed in parallel
+        int labelCounter = 0;
+        for (SmaliMethod method : smaliClass.getMethods()) {
+            int nLocals = method.getLocals();
+            if (nLocals < 0 || nLocals > 5 || HotCodeFilter.isHot(smaliClass.getName(), method.getSignature()))
+                continue;
+            boolean[] loops = HotCodeFilter.isSkippingLoops() ? HotCodeFilter.findLoops(method.getInstructions()) : null;
+            int originalSize = method.getInstructions().size();
+
+            ArrayList<String> newRegs = new ArrayList<>();
+            newRegs.add("v" + (nLocals));
+            newRegs.add("v" + (nLocals + 1));
+            newRegs.add("v" + (nLocals + 2));
+
+            ArrayList<String> replacementContentFirst = new ArrayList<>();
+            // at least 3 initializations, one for each allocated register
+            replacementContentFirst.add(oneRegConst(newRegs.get(0)));
+            replacementContentFirst.add(oneRegConst(newRegs.get(1)));
+            replacementContentFirst.add(oneRegConst(newRegs.get(2)));
+
+            // a register can be initialized multiple times
+            for (int i = 0; i < randInt(1, 10); i++)
+                replacementContentFirst.add(oneRegConst(newRegs.get(randInt(0, newRegs.size() - 1))));
+            // adding lines of junk code that use the instantiated registers
+            for (int i = 0; i < randInt(1, 10); i++)
+                replacementContentFirst.add(twoReg(junkInstr.get(randInt(0, 5)), newRegs.get(randInt(1, newRegs.size() - 1)), newRegs.get(randInt(0, newRegs.size() - 1))));
+
+            StringBuilder replacement = new StringBuilder();
+            for (String s : replacementContentFirst)
+                replacement.append(s);
+
+            int localsIndex = method.indexOfLocals();
+            method.setLocals(nLocals + 3);
+            method.insert(localsIndex + 1, replacement.toString());
+
+            // the registers were allocated in this method, so now we can add the following junk code
+            List<SmaliInstruction> instructions = method.getInstructions();
+            int inserted = instructions.size() - originalSize;
+            for (int index = localsIndex + 1; index < instructions.size(); index++) {
+                if (!instructions.get(index).isInvoke())
+                    continue;
+                if (loops != null && index - inserted >= 0 && loops[index - inserted])
+                    continue;
+                ArrayList<String> replacementContentSecond = new ArrayList<>();
+
+                for (int i = 0; i < randInt(1, 10); i++)
+                    replacementContentSecond.add(twoReg(junkInstr.get(randInt(0, 5)), newRegs.get(randInt(0, newRegs.size() - 1)), newRegs.get(randInt(0, newRegs.size() - 1))));
+                for (int i = 0; i < randInt(1, 10); i++)
+                    replacementContentSecond.add(twoRegJump(junkInstr.get(randInt(6, junkInstr.size() - 1)), newRegs.get(randInt(0, newRegs.size() - 1)), newRegs.get(randInt(0, newRegs.size() - 1)), labelCounter++));
+
+                replacement = new StringBuilder();
+                for (String s : replacementContentSecond)
+                    replacement.append(s);
+
+                replacement.append(LS);
+                method.insert(index, replacement.toString());
+                break;
             }
         }
 
-        matcher.appendTail(nFile);
-
-        return nFile;
+        return smaliClass.toString();
     }
 
     /**
@@ -244,20 +234,20 @@ public class Insertion implements Transformation {
      * method inserts the two registers in the instruction and returns it<br>
      * All instructions returned from this method will have a conditional jump, that jumps just to the next line
      *
-     * @param ins  instruction
-     * @param reg1 first register
-     * @param reg2 second register
+     * @param ins   instruction
+     * @param reg1  first register
+     * @param reg2  second register
+     * @param label number used to make the jump label unique in the file
      * @return the string containing the instruction with the two registers
      */
-    private String twoRegJump(String ins, String reg1, String reg2) {
+    private String twoRegJump(String ins, String reg1, String reg2, int label) {
         Scanner sc = new Scanner(ins);
         sc.useDelimiter("VV");
         String s = sc.next() + reg1 + sc.next() + reg2 + sc.next();
 
         Scanner sc1 = new Scanner(s);
         sc1.useDelimiter("TT");
-        String toRet = sc1.next() + "Target_" + tmpCounter + " " + sc1.next() + "Target_" + tmpCounter;
-        tmpCounter++;
+        String toRet = sc1.next() + "Target_" + label + " " + sc1.next() + "Target_" + label;
 
         sc.close();
         sc1.close();
@@ -1,6 +1,6 @@
 package it.unibz.obfuscationapi.Transformation.JunkInsertion.NopToJunk;
 
-import it.unibz.obfuscationapi.Transformation.Transformation;
+import it.unibz.obfuscationapi.Transformation.SmaliTransformation;
 import it.unibz.obfuscationapi.Utility.Utilities;
 
 import java.io.*;
@@ -16,14 +16,15 @@ import static it.unibz.obfuscationapi.Utility.Utilities.*;
 /**
  * Class that applies the nop to junk instruction transformation
  */
-public class NopToJunk implements Transformation {
+public class NopToJunk extends SmaliTransformation {
     final String COMPOUND_DELIM = "*";
     final ArrayList<String> dirsToExclude;
     final String path;
     final String junkInstrFileName = Paths.get("it", "unibz", "obfuscationapi", "JunkInsertion", "NopToJunk", "junk_instr.txt").toString();
     final String TO_SUBSTITUTE = "nop" + LS;
 
-    private static ArrayList<ArrayList<String>> junkInstr;
+    // Loaded once per instance and never modified afterwards, so it can be read by all threads processing the files
+    private final ArrayList<ArrayList<String>> junkInstr;
 
     public NopToJunk(String path) {
         dirsToExclude = new ArrayList<>(List.of("android"));
@@ -84,39 +85,28 @@ public class NopToJunk implements Transformation {
     }
 
     @Override
-    public void obfuscate() {
-        ArrayList<String> files;
-        try {
-            files = Utilities.navigateDirectoryContents(path, dirsToExclude);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        for (String file : files) {
-            try {
-                process(file);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
+    protected Stage getStage() {
+        return Stage.JUNK;
     }
 
-    private void process(String path) throws IOException {
-        // StringBuffer from file
-        StringBuffer copiaFile = getStringBufferFromFile(path);
+    @Override
+    protected String getCacheParameters() {
+        return "";
+    }
 
-        // substitute
-        StringBuffer nsb = nopToGarbage(copiaFile);
+    @Override
+    protected ArrayList<String> getFiles() throws IOException {
+        return Utilities.navigateDirectoryContents(path, dirsToExclude);
+    }
 
-        //rewrite file
-        FileOutputStream fos = new FileOutputStream(path);
-        OutputStreamWriter out = new OutputStreamWriter(fos, CHAR_ENCODING);
-        out.append(nsb.toString());
-        out.close();
+    @Override
+    protected String process(String path, String content) {
+        return nopToGarbage(content).toString();
     }
 
-    private StringBuffer nopToGarbage(StringBuffer sb) {
+    private StringBuffer nopToGarbage(String sb) {
         Pattern pattern = Pattern.compile(TO_SUBSTITUTE);
-        Matcher matcher = pattern.matcher(sb.toString());
+        Matcher matcher = pattern.matcher(sb);
 
         StringBuffer nFile = new StringBuffer();
         int counter = 0;
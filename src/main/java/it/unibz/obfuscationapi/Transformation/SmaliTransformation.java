@@ -0,0 +1,202 @@
+package it.unibz.obfuscationapi.Transformation;
+
+import it.unibz.obfuscationapi.Smali.SmaliWorkspace;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Base class of the transformations that rewrite the smali files one at a time<br>
+ * The files returned by {@link SmaliTransformation#getFiles() getFiles} are handed to the
+ * {@link TransformationEngine TransformationEngine}, which processes them in parallel, so any state shared between the
+ * files must be thread-safe<br>
+ * Files are read from and written to a {@link SmaliWorkspace SmaliWorkspace}: when the transformation is given the
+ * workspace of the decompiled APK the modifications stay in memory until the workspace is flushed, otherwise the
+ * transformation uses a workspace of its own, flushed as soon as all files are processed
+ */
+public abstract class SmaliTransformation implements Transformation {
+    private SmaliWorkspace workspace;
+    private DexBudget dexBudget;
+
+    /**
+     * Position of a transformation in a {@link CompositeTransformation CompositeTransformation}, which applies its
+     * transformations to each file in the order of their stages<br>
+     * The transformations that allocate registers read the current .locals directive and raise it, so they never reuse
+     * the registers allocated by a previous stage; the labels generated by a transformation are instead unique only
+     * within its own pass, which is why a transformation can appear only once in a composite
+     */
+    public enum Stage {
+        /**
+         * Renames classes and packages, first so that the code generated by the following stages only references the
+         * new names
+         */
+        RENAMING,
+        /**
+         * Replaces invocations; CallIndirection inspects the strings loaded in the registers passed to an invocation,
+         * so it needs them before they are encrypted
+         */
+        INDIRECTION,
+        /**
+         * Encrypts the constants
+         */
+        ENCODING,
+        /**
+         * Reorders the instructions; methods containing jumps are skipped, so it needs to precede the stages adding
+         * them
+         */
+        REORDERING,
+        /**
+         * Inserts junk code, branches and labels
+         */
+        JUNK
+    }
+
+    /**
+     * Sets the workspace the transformation reads the files from and writes them to
+     *
+     * @param workspace workspace of the decompiled APK
+     */
+    public void setWorkspace(SmaliWorkspace workspace) {
+        this.workspace = workspace;
+    }
+
+    /**
+     * Sets the budget of methods shared with the other transformations applied to the same variant
+     *
+     * @param dexBudget budget of the variant, or null to let the transformation use a budget of its own
+     */
+    public void setDexBudget(DexBudget dexBudget) {
+        this.dexBudget = dexBudget;
+    }
+
+    /**
+     * @return the budget shared by the transformations of the variant, null if none was set
+     */
+    protected DexBudget getDexBudget() {
+        return dexBudget;
+    }
+
+    /**
+     * Applies the transformation to all the files returned by {@link SmaliTransformation#getFiles() getFiles}
+     */
+    @Override
+    public void obfuscate() throws Exception {
+        boolean ownWorkspace = workspace == null;
+        if (ownWorkspace)
+            workspace = new SmaliWorkspace();
+        try {
+            beforeProcessing();
+            TransformationCache.Statistics statistics = new TransformationCache.Statistics();
+            TransformationEngine.run(getName(), getFiles(), file -> processFile(file, statistics));
+            if (TransformationCache.isEnabled() && getCacheParameters() != null)
+                System.out.println(getName() + ": " + statistics.getHits() + " files from the cache, "
+                        + statistics.getMisses() + " transformed");
+            afterProcessing();
+            if (ownWorkspace)
+                workspace.flush();
+        } finally {
+            if (ownWorkspace)
+                workspace = null;
+        }
+    }
+
+    /**
+     * Reads a file from the workspace, applies the transformation to it and writes it back only if it was modified
+     *
+     * @param file       path of the file to process
+     * @param statistics hits and misses of the cache in this execution
+     */
+    private void processFile(String file, TransformationCache.Statistics statistics) throws Exception {
+        String content = workspace.read(file);
+        String parameters = getCacheParameters();
+        String result;
+        if (parameters != null && TransformationCache.isEnabled())
+            result = TransformationCache.apply(getClass().getName(), parameters, content, () -> process(file, content),
+                    statistics);
+        else
+            result = process(file, content);
+        if (!result.equals(content))
+            workspace.write(file, result);
+    }
+
+    /**
+     * @return the workspace the transformation is currently working on, null outside of
+     * {@link SmaliTransformation#obfuscate() obfuscate} if none was set
+     */
+    protected SmaliWorkspace getWorkspace() {
+        return workspace;
+    }
+
+    /**
+     * @param file path of the file
+     * @return the current contents of the file in the workspace
+     * @throws IOException if the file can't be read
+     */
+    protected String readFile(String file) throws IOException {
+        return workspace.read(file);
+    }
+
+    /**
+     * Replaces the contents of a file in the workspace, creating it if it does not exist
+     *
+     * @param file    path of the file
+     * @param content new contents of the file
+     */
+    protected void writeFile(String file, String content) {
+        workspace.write(file, content);
+    }
+
+    /**
+     * @param file path of the file
+     * @return true if the file exists in the workspace or on disk
+     */
+    protected boolean fileExists(String file) {
+        return workspace.exists(file);
+    }
+
+    /**
+     * @return the stage of the transformation, determining its position in a
+     * {@link CompositeTransformation CompositeTransformation}
+     */
+    protected abstract Stage getStage();
+
+    /**
+     * Returns the settings of the transformation that affect the result of {@link SmaliTransformation#process(String,
+     * String) process}, which together with the contents of the file identify the result in the
+     * {@link TransformationCache TransformationCache}
+     *
+     * @return the settings, or null if the result of process depends on more than the contents of the file (e.g. on
+     * the other files or on their order) and can't be cached
+     */
+    protected String getCacheParameters() {
+        return null;
+    }
+
+    /**
+     * @return the list of files the transformation is applied to
+     * @throws IOException if the directories containing the files can't be navigated
+     */
+    protected abstract ArrayList<String> getFiles() throws IOException;
+
+    /**
+     * Applies the transformation to the contents of a single file; can be called concurrently for different files
+     *
+     * @param file    path of the file to process
+     * @param content current contents of the file
+     * @return the transformed contents of the file
+     */
+    protected abstract String process(String file, String content) throws Exception;
+
+    /**
+     * Executed once before any file is processed, e.g. to reset the state of a previous execution or to add the
+     * classes needed by the transformation
+     */
+    protected void beforeProcessing() throws Exception {
+    }
+
+    /**
+     * Executed once after all files have been processed
+     */
+    protected void afterProcessing() throws Exception {
+    }
+}
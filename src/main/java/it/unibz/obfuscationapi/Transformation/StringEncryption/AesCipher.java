@@ -0,0 +1,92 @@
+package it.unibz.obfuscationapi.Transformation.StringEncryption;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * AES cipher in CTR mode, decrypted at runtime through the javax.crypto.Cipher of the platform by
+ * Lcom/123456789/AesDecrypter;->decrypt<br>
+ * The string is encoded in UTF-8 and encrypted with a fixed key and an IV derived from the HMAC of the string, so the
+ * same string always produces the same literal (keeping the transformation deterministic and cacheable) while different
+ * strings never share the IV. The literal holds the IV followed by the encrypted bytes, one character per byte, and is
+ * turned back into bytes with ISO-8859-1 at runtime
+ */
+public class AesCipher implements StringCipher {
+    // Key of the cipher, the same used by the AesDecrypter class
+    private final static byte[] KEY = "k3Y!d8#qZp0@w7Lx".getBytes(StandardCharsets.ISO_8859_1);
+    private final static int IV_LENGTH = 16;
+    private final static String TRANSFORMATION = "AES/CTR/NoPadding";
+    private final static ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+    private final static ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(KEY, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    });
+    private final static ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    @Override
+    public String getName() {
+        return "aes-ctr";
+    }
+
+    @Override
+    public String getDecrypterName() {
+        return "AesDecryption";
+    }
+
+    @Override
+    public String getDecryptMethod() {
+        return "Lcom/123456789/AesDecrypter;->decrypt(Ljava/lang/String;)Ljava/lang/String;";
+    }
+
+    @Override
+    public void encrypt(CharSequence text, int start, int end, String className, StringBuilder out) {
+        StringBuilder value = BUFFER.get();
+        value.setLength(0);
+        StringCipher.unescape(text, start, end, value);
+        byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] iv = new byte[IV_LENGTH];
+        System.arraycopy(MAC.get().doFinal(bytes), 0, iv, 0, IV_LENGTH);
+        byte[] encrypted;
+        try {
+            Cipher cipher = CIPHER.get();
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(iv));
+            encrypted = cipher.doFinal(bytes);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        for (byte b : iv)
+            StringCipher.escape((char) (b & 0xff), out);
+        for (byte b : encrypted)
+            StringCipher.escape((char) (b & 0xff), out);
+    }
+
+    /**
+     * Decrypts the string like AesDecrypter.decrypt, creating a new Cipher for each call
+     */
+    @Override
+    public String decrypt(String encrypted) {
+        byte[] bytes = encrypted.getBytes(StandardCharsets.ISO_8859_1);
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(bytes, 0, IV_LENGTH));
+            return new String(cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
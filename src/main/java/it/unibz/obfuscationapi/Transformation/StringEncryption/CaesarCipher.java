@@ -0,0 +1,87 @@
+package it.unibz.obfuscationapi.Transformation.StringEncryption;
+
+/**
+ * Caesar cipher with a shift of 2, the default cipher of StringEncryption<br>
+ * The shift is applied to the printable ASCII characters of the literal as it appears in the smali file, leaving the
+ * escape sequences untouched, and reverted at runtime by Lcom/123456789/Decrypter;->applyCaesar
+ */
+public class CaesarCipher implements StringCipher {
+    // Shift applied by the cipher, the same used by the Decrypter class to decrypt the strings
+    private final static int SHIFT = 2;
+
+    @Override
+    public String getName() {
+        return "caesar " + SHIFT;
+    }
+
+    @Override
+    public String getDecrypterName() {
+        return "Decryption";
+    }
+
+    @Override
+    public String getDecryptMethod() {
+        return "Lcom/123456789/Decrypter;->applyCaesar(Ljava/lang/String;)Ljava/lang/String;";
+    }
+
+    /**
+     * Encodes a string using the Caesar cipher with a specific shift
+     */
+    @Override
+    public void encrypt(CharSequence text, int start, int end, String className, StringBuilder out) {
+        boolean skip = false;
+        int sc = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                sc = 0;
+                skip = true;
+                out.append(c);
+                continue;
+            }
+            if (c == '\"' || c == ' ' || c == '\n' || c == 'Z' || c == '\t' || c == '\'' || c == 'X') {
+                out.append(c);
+                continue;
+            }
+
+            if (c >= 32 && c <= 127) {
+                if (skip && sc < 5) {
+                    sc++;
+                    out.append(c);
+                    continue;
+                } else
+                    skip = false;
+
+            }
+            int x = c - 32;
+            x = (x + SHIFT) % 96;
+            if (x < 0) //java modulo can lead to negative values!
+                x += 96;
+            out.append((char) (x + 32));
+        }
+    }
+
+    /**
+     * Reverts the shift like Decrypter.applyCaesar: the printable ASCII characters are shifted back, except the ones
+     * skipped by the encryption and all the characters following a backslash
+     */
+    @Override
+    public String decrypt(String encrypted) {
+        char[] chars = encrypted.toCharArray();
+        boolean skip = false;
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+            if (c == '\\') {
+                skip = true;
+                continue;
+            }
+            if (c == '\"' || c == ' ' || c == '\n' || c == '\t' || c == '\'' || c == 'Z' || c < 32 || c > 127 || skip)
+                continue;
+            int x = (c - 32 - SHIFT) % 96;
+            if (x < 0)
+                x += 96;
+            chars[i] = (char) (x + 32);
+        }
+        return new String(chars);
+    }
+}
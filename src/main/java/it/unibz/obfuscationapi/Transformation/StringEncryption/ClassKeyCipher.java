@@ -0,0 +1,61 @@
+package it.unibz.obfuscationapi.Transformation.StringEncryption;
+
+/**
+ * Stream cipher like {@link XorCipher XorCipher}, whose key depends on the class containing the string, so that the
+ * same string is encrypted differently in different classes<br>
+ * The key of a class is derived from a secret and from a 16-bit identifier computed from the name of the class; the
+ * identifier is prepended to the encrypted string, so a single decrypter, Lcom/123456789/ClassKeyDecrypter;->decrypt,
+ * can derive the key of any class at runtime without adding a method or a field to the classes
+ */
+public class ClassKeyCipher implements StringCipher {
+    // Secret the keys are derived from, the same used by the ClassKeyDecrypter class
+    private final static int SECRET = 0x5bd1e995;
+    // Odd multiplier spreading the bits of the identifier of the class over the whole key
+    private final static int MULTIPLIER = 0x9e3779b1;
+    private final static ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+
+    @Override
+    public String getName() {
+        return "class-key " + Integer.toHexString(SECRET);
+    }
+
+    @Override
+    public String getDecrypterName() {
+        return "ClassKeyDecryption";
+    }
+
+    @Override
+    public String getDecryptMethod() {
+        return "Lcom/123456789/ClassKeyDecrypter;->decrypt(Ljava/lang/String;)Ljava/lang/String;";
+    }
+
+    @Override
+    public void encrypt(CharSequence text, int start, int end, String className, StringBuilder out) {
+        char id = (char) className.hashCode();
+        StringBuilder value = BUFFER.get();
+        value.setLength(0);
+        StringCipher.unescape(text, start, end, value);
+        StringCipher.escape(id, out);
+        XorCipher.apply(value, 0, getKey(id), out);
+    }
+
+    @Override
+    public String decrypt(String encrypted) {
+        char[] chars = encrypted.toCharArray();
+        int state = getKey(chars[0]);
+        for (int i = 1; i < chars.length; i++) {
+            state = XorCipher.next(state);
+            chars[i] = (char) (chars[i] ^ state);
+        }
+        return new String(chars, 1, chars.length - 1);
+    }
+
+    /**
+     * @param id identifier of the class
+     * @return the key of the class, never 0
+     */
+    private static int getKey(char id) {
+        int key = (id * MULTIPLIER) ^ SECRET;
+        return key == 0 ? SECRET : key;
+    }
+}
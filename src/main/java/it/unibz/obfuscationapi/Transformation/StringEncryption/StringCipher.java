@@ -0,0 +1,115 @@
+package it.unibz.obfuscationapi.Transformation.StringEncryption;
+
+/**
+ * Cipher used by StringEncryption to encrypt the strings of the smali files, together with the decrypter class added
+ * to the APK to decrypt them at runtime<br>
+ * The decrypter is a smali class in the package com/123456789, whose source is the txt file with the same name in the
+ * resources folder (it/unibz/obfuscationapi/StringEncryption/{name}.txt), declaring a static method that takes the
+ * encrypted string and returns the original one. The ciphers must be stateless, as the same cipher can encrypt the
+ * files of multiple variants at the same time
+ */
+public interface StringCipher {
+    /**
+     * @return the name of the cipher and of its parameters, part of the cache parameters of StringEncryption
+     */
+    String getName();
+
+    /**
+     * @return the name of the smali file declaring the decrypter class and of its source file, without extension
+     */
+    String getDecrypterName();
+
+    /**
+     * @return the static method of the decrypter class decrypting a string, e.g.
+     * Lcom/123456789/Decrypter;->applyCaesar(Ljava/lang/String;)Ljava/lang/String;
+     */
+    String getDecryptMethod();
+
+    /**
+     * Encrypts a string literal of a smali file
+     *
+     * @param text      contents of the smali file
+     * @param start     index of the first character of the literal, following the opening quote
+     * @param end       index of the closing quote of the literal
+     * @param className name of the class declared by the file, e.g. Lcom/example/MainActivity;
+     * @param out       buffer the encrypted literal is appended to, escaped and without quotes
+     */
+    void encrypt(CharSequence text, int start, int end, String className, StringBuilder out);
+
+    /**
+     * Performs on the JVM the same decryption as the decrypter class, used to check and benchmark it
+     *
+     * @param encrypted value of the encrypted literal, i.e. the string loaded at runtime
+     * @return the decrypted string
+     */
+    String decrypt(String encrypted);
+
+    /**
+     * Appends a character to a smali string literal, escaping it unless it is printable ASCII
+     *
+     * @param c   character to append
+     * @param out buffer containing the literal
+     */
+    static void escape(char c, StringBuilder out) {
+        if (c == '"' || c == '\\')
+            out.append('\\').append(c);
+        else if (c >= 0x20 && c < 0x7f)
+            out.append(c);
+        else
+            out.append("\\u").append(Character.forDigit(c >> 12, 16)).append(Character.forDigit((c >> 8) & 0xf, 16))
+                    .append(Character.forDigit((c >> 4) & 0xf, 16)).append(Character.forDigit(c & 0xf, 16));
+    }
+
+    /**
+     * Appends the value of a smali string literal, resolving its escape sequences; invalid sequences are kept as they
+     * are
+     *
+     * @param text  text containing the literal
+     * @param start index of the first character of the literal
+     * @param end   index following the last character of the literal
+     * @param out   buffer the value is appended to
+     */
+    static void unescape(CharSequence text, int start, int end, StringBuilder out) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c != '\\' || i + 1 == end) {
+                out.append(c);
+                continue;
+            }
+            char next = text.charAt(i + 1);
+            switch (next) {
+                case 'n' -> out.append('\n');
+                case 'r' -> out.append('\r');
+                case 't' -> out.append('\t');
+                case 'b' -> out.append('\b');
+                case 'f' -> out.append('\f');
+                case '"', '\'', '\\' -> out.append(next);
+                case 'u' -> {
+                    int value = i + 6 <= end ? parseHex(text, i + 2, i + 6) : -1;
+                    if (value == -1) {
+                        out.append(c);
+                        continue;
+                    }
+                    out.append((char) value);
+                    i += 4;
+                }
+                default -> {
+                    out.append(c);
+                    continue;
+                }
+            }
+            i++;
+        }
+    }
+
+    private static int parseHex(CharSequence text, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(text.charAt(i), 16);
+            if (digit == -1)
+                return -1;
+            value = value * 16 + digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,118 @@
+package it.unibz.obfuscationapi.Transformation.StringEncryption;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark of the ciphers of StringEncryption on the smali files of a decompiled APK, reporting for each cipher:
+ * <ul>
+ *     <li>the build-time throughput, i.e. the MB of smali rewritten per second by StringEncryption with the cipher</li>
+ *     <li>the cost of a call to the decrypter, measured on the JVM by {@link StringCipher#decrypt(String) decrypt},
+ *     which performs the same operations as the generated smali decrypter: it approximates the cost on the device,
+ *     where the decrypter runs on ART</li>
+ *     <li>the number of strings decrypted back to the original one</li>
+ * </ul>
+ * Usage: StringCipherBenchmark smaliDirectory [rounds], where rounds (5 by default) is the number of times the files
+ * and the strings are processed after a first round warming up the JVM
+ */
+public class StringCipherBenchmark {
+    private final static List<StringCipher> CIPHERS = List.of(new CaesarCipher(), new XorCipher(),
+            new ClassKeyCipher(), new AesCipher());
+    // Result of the decryptions, kept so that the JIT compiler can't skip them
+    private static volatile int sink;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: StringCipherBenchmark smaliDirectory [rounds]");
+            return;
+        }
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        ArrayList<String> files = new ArrayList<>();
+        ArrayList<String> texts = new ArrayList<>();
+        long size = 0;
+        try (Stream<Path> paths = Files.walk(Paths.get(args[0]))) {
+            for (Path file : paths.filter(p -> p.toString().endsWith(".smali")).toList()) {
+                files.add(file.toString());
+                texts.add(Files.readString(file, StandardCharsets.UTF_8));
+                size += Files.size(file);
+            }
+        }
+        System.out.println(files.size() + " smali files, " + String.format("%.1f", size / 1e6) + " MB");
+        for (StringCipher cipher : CIPHERS) {
+            StringEncryption stringEncryption = new StringEncryption(args[0], new ArrayList<>());
+            stringEncryption.setCipher(cipher);
+            long time = 0;
+            for (int round = 0; round <= rounds; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < files.size(); i++)
+                    stringEncryption.process(files.get(i), texts.get(i));
+                if (round > 0)
+                    time += System.nanoTime() - start;
+            }
+            double throughput = time == 0 ? 0 : size * rounds / 1e6 / (time / 1e9);
+
+            ArrayList<String> originals = new ArrayList<>();
+            ArrayList<String> encrypted = new ArrayList<>();
+            collectStrings(cipher, texts, originals, encrypted);
+            long calls = 0;
+            int hash = 0;
+            time = 0;
+            for (int round = 0; round <= rounds; round++) {
+                long start = System.nanoTime();
+                for (String string : encrypted)
+                    hash += cipher.decrypt(string).hashCode();
+                if (round > 0) {
+                    time += System.nanoTime() - start;
+                    calls += encrypted.size();
+                }
+            }
+            sink = hash;
+            int decrypted = 0;
+            for (int i = 0; i < encrypted.size(); i++) {
+                if (cipher.decrypt(encrypted.get(i)).equals(originals.get(i)))
+                    decrypted++;
+            }
+            System.out.println(String.format("%-16s %10.1f MB/s %10.1f ns/call %8d/%d strings decrypted",
+                    cipher.getName(), throughput, calls == 0 ? 0.0 : (double) time / calls, decrypted,
+                    encrypted.size()));
+        }
+    }
+
+    /**
+     * Collects the strings of the files, as they are loaded at runtime before and after the encryption
+     *
+     * @param cipher    cipher encrypting the strings
+     * @param texts     contents of the smali files
+     * @param originals filled with the original strings
+     * @param encrypted filled with the encrypted strings, in the same order
+     */
+    private static void collectStrings(StringCipher cipher, List<String> texts, List<String> originals,
+                                       List<String> encrypted) {
+        int[] match = new int[5];
+        StringBuilder literal = new StringBuilder();
+        StringBuilder value = new StringBuilder();
+        for (String text : texts) {
+            Matcher matcher = StringEncryption.CLASS.matcher(text);
+            String className = matcher.find() ? matcher.group(2) : "";
+            int from = 0;
+            while (StringEncryption.findConstString(text, from, match)) {
+                value.setLength(0);
+                StringCipher.unescape(text, match[3] + 1, match[4], value);
+                originals.add(value.toString());
+                literal.setLength(0);
+                cipher.encrypt(text, match[3] + 1, match[4], className, literal);
+                value.setLength(0);
+                StringCipher.unescape(literal, 0, literal.length(), value);
+                encrypted.add(value.toString());
+                from = match[4] + 1;
+            }
+        }
+    }
+}
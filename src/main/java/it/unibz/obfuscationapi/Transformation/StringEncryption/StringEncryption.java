@@ -1,14 +1,16 @@
 package it.unibz.obfuscationapi.Transformation.StringEncryption;
 
 import it.unibz.obfuscationapi.Obfuscation.CommandExecution;
-import it.unibz.obfuscationapi.Transformation.Transformation;
+import it.unibz.obfuscationapi.Transformation.DexBudget;
+import it.unibz.obfuscationapi.Transformation.SmaliTransformation;
 import it.unibz.obfuscationapi.Utility.Utilities;
 
-import java.io.*;
-import java.nio.file.Files;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,10 +19,41 @@ import static it.unibz.obfuscationapi.Utility.Utilities.*;
 /**
  * Class that applies the StringEncryption transformation to the decompiled smali files
  */
-public class StringEncryption implements Transformation {
+public class StringEncryption extends SmaliTransformation {
+    // Maximum number of strings of the pool of a class, so that their index fits a const/16 instruction; the other
+    // strings of the class are decrypted inline
+    private final static int POOL_LIMIT = Short.MAX_VALUE;
+    final static Pattern CLASS = Pattern.compile("^\\.class (.*)(L[^;]+;)$", Pattern.MULTILINE);
+    private final static String CONST_STRING = "const-string";
+    private final static String JUMBO = "/jumbo";
+    // Package of the decrypter classes, whose strings are left as they are
+    private final static Path DECRYPTER_DIR = Paths.get("com", "123456789");
+    // Buffers of each thread the files and the strings are rewritten into, reused by all the files it processes
+    private final static ThreadLocal<StringBuilder> FILE_BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+    private final static ThreadLocal<StringBuilder> STRING_BUFFER = ThreadLocal.withInitial(StringBuilder::new);
     private final ArrayList<String> dirsToExclude;
     private final String path;
-    private final String decryptionSrcFile = Paths.get( "it", "unibz", "obfuscationapi", "StringEncryption", "Decryption.txt").toString();
+    private DecryptionMode decryptionMode = DecryptionMode.INLINE;
+    private StringCipher cipher = new CaesarCipher();
+    private String stringPoolCode;
+    private final String stringPoolSrcFile = Paths.get("it", "unibz", "obfuscationapi", "StringEncryption", "StringPool.txt").toString();
+
+    /**
+     * Where the encrypted strings are decrypted at runtime
+     */
+    public enum DecryptionMode {
+        /**
+         * Where they are loaded, each time the const-string instruction is executed
+         */
+        INLINE,
+        /**
+         * In a method added to each class, holding the encrypted strings of the class in a switch and caching each
+         * string the first time it is decrypted, so a string is decrypted once per process (or once per thread
+         * reaching it at the same time for the first time) even inside a loop; the method is reserved in the
+         * {@link DexBudget DexBudget} if one is set, and interfaces keep the inline decryption
+         */
+        CLASS_POOL
+    }
 
     /**
      *
@@ -43,155 +76,224 @@ public class StringEncryption implements Transformation {
     }
 
     /**
-     * Applies the transformation string encryption to the decompiled APK
+     * @param decryptionMode where the strings are decrypted at runtime, {@link DecryptionMode#INLINE INLINE} by default
+     */
+    public void setDecryptionMode(DecryptionMode decryptionMode) {
+        this.decryptionMode = decryptionMode;
+    }
+
+    /**
+     * @param cipher cipher encrypting the strings, a {@link CaesarCipher CaesarCipher} by default
+     */
+    public void setCipher(StringCipher cipher) {
+        this.cipher = cipher;
+    }
+
+    /**
+     * Adds the decryption class before the strings are encrypted
      */
     @Override
-    public void obfuscate() {
+    protected void beforeProcessing() throws IOException {
         addDecryptionClass();
-        ArrayList<String> files;
-        try {
-            files = Utilities.navigateDirectoryContents(path, dirsToExclude);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        for (String file : files) {
-            try {
-                process(file);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
+        if (decryptionMode == DecryptionMode.CLASS_POOL && stringPoolCode == null)
+            stringPoolCode = getStringBufferFromFile(stringPoolSrcFile).toString();
+    }
+
+    @Override
+    protected Stage getStage() {
+        return Stage.ENCODING;
+    }
+
+    /**
+     * @return the parameters of the cipher, or null if the string pools are reserved in a dex budget, as the pool of
+     * a file then depends on the room left by the other files
+     */
+    @Override
+    protected String getCacheParameters() {
+        if (decryptionMode == DecryptionMode.CLASS_POOL)
+            return getDexBudget() != null ? null : cipher.getName() + " all pool";
+        return cipher.getName() + " all";
+    }
+
+    @Override
+    protected ArrayList<String> getFiles() throws IOException {
+        return Utilities.navigateDirectoryContents(path, dirsToExclude);
     }
 
     /**
-     * Generates (if it does not exist already) the package com/123456789 and, inside of it, creates the
-     * Decryption.smali file containing the code to apply the decryption to the strings
+     * Adds (if it does not exist already) the smali file of the decrypter of the cipher, e.g. Decryption.smali,
+     * containing the code to apply the decryption to the strings inside the package com/123456789; the missing
+     * directories are created when the workspace is flushed
      */
-    private void addDecryptionClass() {
+    private void addDecryptionClass() throws IOException {
         String separator = SEPARATOR;
         if (CommandExecution.os.contains("win")) {
             separator += SEPARATOR;
         }
         Pattern pattern = Pattern.compile(separator + "smali");
         Matcher matcher = pattern.matcher(path);
-        try {
-            if (matcher.find()) {
-                Path smaliPath = Paths.get(path.substring(0, matcher.end()));
-                Path comDir = smaliPath.resolve("com");
-                if (!Files.exists(comDir)) {
-                    Path dcrPkg = Files.createDirectories(comDir.resolve("123456789"));
-                    Path dcrPath = dcrPkg.resolve("Decryption.smali");
-                    createDecryptionFile(dcrPath.toString());
-                } else {
-                    Path dcrPkg = comDir.resolve("123456789");
-                    if (!Files.exists(dcrPkg)) {
-                        Files.createDirectory(dcrPkg);
-                        Path dcrPath = dcrPkg.resolve("Decryption.smali");
-                        createDecryptionFile(dcrPath.toString());
-                    } else {
-                        Path dcrPath = dcrPkg.resolve("Decryption.smali");
-                        if (!Files.exists(dcrPath)) {
-                            createDecryptionFile(dcrPath.toString());
-                        }
-                    }
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
+        if (matcher.find()) {
+            Path smaliPath = Paths.get(path.substring(0, matcher.end()));
+            String dcrPath = smaliPath.resolve(DECRYPTER_DIR).resolve(cipher.getDecrypterName() + ".smali").toString();
+            if (!fileExists(dcrPath))
+                writeFile(dcrPath, getStringBufferFromFile(Paths.get("it", "unibz", "obfuscationapi",
+                        "StringEncryption", cipher.getDecrypterName() + ".txt").toString()).toString());
         }
     }
 
     /**
-     * Creates the Decryption.smali file
-     */
-    private void createDecryptionFile(String pathToDcr) throws FileNotFoundException, UnsupportedEncodingException {
-        StringBuffer text = getStringBufferFromFile(decryptionSrcFile);
-        File decryption = new File(pathToDcr);
-        PrintStream ps = new PrintStream(new FileOutputStream(decryption));
-        ps.print(text);
-        ps.close();
-    }
-
-    /**
-     * Applies the transformation Data Encoding
+     * Applies the transformation Data Encoding to all the strings of the file. With the
+     * {@link DecryptionMode#CLASS_POOL CLASS_POOL} mode each const-string instruction is replaced with the invocation of
+     * the string pool of the class, passing the index of the string, and the pool is appended to the class<br>
+     * The file is rewritten in a single pass: the text between the const-string instructions is copied as it is into a
+     * buffer reused by the thread, and each string is encrypted directly from the contents of the file into the same
+     * buffer by the cipher, without creating intermediate strings<br>
+     * The files of the package com/123456789 are left untouched, as the strings of the decrypters can't be encrypted
      *
      * @param filePath path of the file to modify
-     * @throws FileNotFoundException
+     * @param text     contents of the file
+     * @return the contents of the file with the strings encrypted
      */
-    private void process(String filePath) throws IOException {
-        StringBuffer text = getStringBufferFromFile(filePath);
-        Pattern pattern = Pattern.compile("(const-string(/jumbo)? )([a-z][0-9]+)(, )(\".*\")");
-        Matcher matcher = pattern.matcher(text.toString());
-        StringBuilder nFile = new StringBuilder();
-        int times = 0;
-        while (matcher.find() && times <= 15) {
-            String key = "\"" + applyCaesar(matcher.group(5).substring(1, matcher.group(5).length() - 1), 2) + "\"";
-            String insert = "    invoke-static {" + matcher.group(3) +
-                    "}, Lcom/123456789/Decrypter;->applyCaesar(Ljava/lang/String;)Ljava/lang/String;" + LS +
-                    "    move-result-object " + matcher.group(3);
-            String replacement = matcher.group(1) + matcher.group(3) + matcher.group(4) + key + LS + insert;
-            matcher.appendReplacement(nFile, Matcher.quoteReplacement(replacement));
-            times++;
-        }
-        matcher.appendTail(nFile);
-
-        FileOutputStream fos = new FileOutputStream(filePath);
-        OutputStreamWriter out = new OutputStreamWriter(fos, CHAR_ENCODING);
-        out.append(nFile.toString());
-        out.close();
+    @Override
+    protected String process(String filePath, String text) {
+        int[] match = new int[5];
+        Path parent = Paths.get(filePath).getParent();
+        if ((parent != null && parent.endsWith(DECRYPTER_DIR)) || !findConstString(text, 0, match))
+            return text;
+        Matcher classMatcher = CLASS.matcher(text);
+        boolean declared = classMatcher.find();
+        String className = declared ? classMatcher.group(2) : "";
+        String poolClass = decryptionMode == DecryptionMode.CLASS_POOL && declared
+                && !classMatcher.group(1).contains("interface") ? getPoolClass(filePath, className) : null;
+        // Index in the pool of the instruction loading each encrypted string
+        LinkedHashMap<String, Integer> pool = new LinkedHashMap<>();
+        StringBuilder nFile = FILE_BUFFER.get();
+        nFile.setLength(0);
+        int last = 0;
+        do {
+            nFile.append(text, last, match[0]);
+            Integer index = null;
+            if (poolClass != null) {
+                StringBuilder constString = STRING_BUFFER.get();
+                constString.setLength(0);
+                constString.append(text, match[0], match[1]).append("v1, \"");
+                cipher.encrypt(text, match[3] + 1, match[4], className, constString);
+                constString.append('"');
+                String key = constString.toString();
+                index = pool.get(key);
+                if (index == null && pool.size() < POOL_LIMIT) {
+                    index = pool.size();
+                    pool.put(key, index);
+                }
+            }
+            if (index != null) {
+                nFile.append("const/16 ").append(text, match[1], match[2]).append(", ")
+                        .append(String.format("0x%01X", index)).append(LS)
+                        .append("    invoke-static {").append(text, match[1], match[2]).append("}, ").append(poolClass)
+                        .append("->string$123456789(I)Ljava/lang/String;").append(LS)
+                        .append("    move-result-object ").append(text, match[1], match[2]);
+            } else {
+                nFile.append(text, match[0], match[2]).append(", \"");
+                cipher.encrypt(text, match[3] + 1, match[4], className, nFile);
+                nFile.append('"').append(LS)
+                        .append("    invoke-static {").append(text, match[1], match[2]).append("}, ")
+                        .append(cipher.getDecryptMethod()).append(LS)
+                        .append("    move-result-object ").append(text, match[1], match[2]);
+            }
+            last = match[4] + 1;
+        } while (findConstString(text, last, match));
+        nFile.append(text, last, text.length());
+        if (poolClass != null)
+            nFile.append(createStringPool(poolClass, pool));
+        return nFile.toString();
     }
 
     /**
-     * Encodes a string using the Caesar cipher with a specific shift
+     * Finds the next instruction loading a string, i.e. const-string or const-string/jumbo followed by a register and a
+     * string, which ends with the last quote of the line
      *
-     * @param text text to encode
-     * @param shift shift applied in the encryption
-     * @return
+     * @param text  contents of the file
+     * @param from  index the search starts from
+     * @param match filled with the index of the instruction, the start and the end of the register and the indexes of
+     *              the opening and the closing quote of the string
+     * @return true if an instruction was found
      */
-    private String applyCaesar(String text, int shift) {
-        char[] chars = text.toCharArray();
-        boolean skip = false;
-        int sc = 0;
-        for (int i = 0; i < text.length(); i++) {
-            char c = chars[i];
-            if (c == '\\') {
-                sc = 0;
-                skip = true;
-                continue;
-            }
-            if (c == '\"')
-                continue;
-            if (c == ' ')
-                continue;
-            if (c == '\n')
+    static boolean findConstString(String text, int from, int[] match) {
+        int start;
+        while ((start = text.indexOf(CONST_STRING, from)) != -1) {
+            from = start + 1;
+            int i = start + CONST_STRING.length();
+            if (text.startsWith(JUMBO, i))
+                i += JUMBO.length();
+            if (i >= text.length() || text.charAt(i) != ' ')
                 continue;
-            if (c == 'Z')
+            int register = ++i;
+            if (i >= text.length() || text.charAt(i) < 'a' || text.charAt(i) > 'z')
                 continue;
-            if (c == '\t')
+            i++;
+            while (i < text.length() && text.charAt(i) >= '0' && text.charAt(i) <= '9')
+                i++;
+            if (i == register + 1 || !text.startsWith(", \"", i))
                 continue;
-            if (c == '\'')
-                continue;
-            if (c == 'X')
+            int open = i + 2;
+            int close = -1;
+            for (i = open + 1; i < text.length() && !isLineTerminator(text.charAt(i)); i++) {
+                if (text.charAt(i) == '"')
+                    close = i;
+            }
+            if (close == -1)
                 continue;
+            match[0] = start;
+            match[1] = register;
+            match[2] = open - 2;
+            match[3] = open;
+            match[4] = close;
+            return true;
+        }
+        return false;
+    }
 
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
 
-            if (c >= 32 && c <= 127) {
-                if (skip && sc < 5) {
-                    sc++;
-                    continue;
-                } else
-                    skip = false;
+    /**
+     * Returns the class that can hold a string pool, reserving the method of the pool in the dex budget if one is set
+     *
+     * @param filePath  path of the file
+     * @param className name of the class declared by the file, not an interface
+     * @return the name of the class, or null if there is no room for the method
+     */
+    private String getPoolClass(String filePath, String className) {
+        DexBudget budget = getDexBudget();
+        if (budget != null && !budget.reserveMethods(budget.findDir(filePath), 1))
+            return null;
+        return className;
+    }
 
-            }
-            int x = c - 32;
-            x = (x + shift) % 96;
-            if (x < 0) //java modulo can lead to negative values!
-                x += 96;
-            chars[i] = (char) (x + 32);
+    /**
+     * Creates the string pool of a class from the StringPool.txt source file in the resources folder: a static array
+     * caching the decrypted strings and a method that, given the index of a string, returns it from the array or loads
+     * the encrypted string in the case of the index of a switch, decrypts it and stores it in the array
+     *
+     * @param poolClass name of the class
+     * @param pool      instructions loading the encrypted strings, by index
+     * @return the code of the string pool
+     */
+    private String createStringPool(String poolClass, LinkedHashMap<String, Integer> pool) {
+        StringBuilder cases = new StringBuilder();
+        StringBuilder labels = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : pool.entrySet()) {
+            cases.append("    :pswitch_").append(entry.getValue()).append(LS)
+                    .append("    ").append(entry.getKey()).append(LS).append(LS)
+                    .append("    goto :goto_0").append(LS).append(LS);
+            labels.append("        :pswitch_").append(entry.getValue()).append(LS);
         }
-
-        return new String(chars);
+        return stringPoolCode.replace("#!class!#", poolClass)
+                .replace("#!size!#", String.format("0x%01X", pool.size()))
+                .replace("#!decrypt!#", cipher.getDecryptMethod())
+                .replace("#!cases!#" + LS, cases)
+                .replace("#!labels!#" + LS, labels);
     }
 
 }
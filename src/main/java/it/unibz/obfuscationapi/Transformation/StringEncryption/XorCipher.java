@@ -0,0 +1,76 @@
+package it.unibz.obfuscationapi.Transformation.StringEncryption;
+
+/**
+ * Stream cipher XORing each character of the string with a keystream generated by a xorshift generator, restarted from
+ * the same key for every string<br>
+ * Unlike the Caesar cipher it encrypts all the characters of the string, including the escape sequences, which are
+ * resolved before the encryption; the encrypted characters that are not printable ASCII are written as \\uXXXX escape
+ * sequences, so the literals grow in the smali files but not in the dex file. The strings are decrypted at runtime by
+ * Lcom/123456789/XorDecrypter;->decrypt
+ */
+public class XorCipher implements StringCipher {
+    // Key of the keystream, the same used by the XorDecrypter class, must not be 0
+    private final static int KEY = 0x2545f491;
+    private final static ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+
+    @Override
+    public String getName() {
+        return "xor " + Integer.toHexString(KEY);
+    }
+
+    @Override
+    public String getDecrypterName() {
+        return "XorDecryption";
+    }
+
+    @Override
+    public String getDecryptMethod() {
+        return "Lcom/123456789/XorDecrypter;->decrypt(Ljava/lang/String;)Ljava/lang/String;";
+    }
+
+    @Override
+    public void encrypt(CharSequence text, int start, int end, String className, StringBuilder out) {
+        StringBuilder value = BUFFER.get();
+        value.setLength(0);
+        StringCipher.unescape(text, start, end, value);
+        apply(value, 0, KEY, out);
+    }
+
+    @Override
+    public String decrypt(String encrypted) {
+        char[] chars = encrypted.toCharArray();
+        int state = KEY;
+        for (int i = 0; i < chars.length; i++) {
+            state = next(state);
+            chars[i] = (char) (chars[i] ^ state);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * XORs the characters of a string with the keystream of a key, escaping the result
+     *
+     * @param value string to encrypt
+     * @param start index of the first character to encrypt
+     * @param key   first state of the xorshift generator, not 0
+     * @param out   buffer the escaped result is appended to
+     */
+    static void apply(CharSequence value, int start, int key, StringBuilder out) {
+        int state = key;
+        for (int i = start; i < value.length(); i++) {
+            state = next(state);
+            StringCipher.escape((char) (value.charAt(i) ^ state), out);
+        }
+    }
+
+    /**
+     * @param state current state of the generator
+     * @return the next state of the 32-bit xorshift generator, whose lower 16 bits are XORed with a character
+     */
+    static int next(int state) {
+        state ^= state << 13;
+        state ^= state >>> 17;
+        state ^= state << 5;
+        return state;
+    }
+}
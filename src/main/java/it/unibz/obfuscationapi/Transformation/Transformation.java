@@ -2,4 +2,12 @@ package it.unibz.obfuscationapi.Transformation;
 
 public interface Transformation {
     void obfuscate() throws Exception;
+
+    /**
+     * @return the name identifying the variant of the APK produced by the transformation, used for the folders of the
+     * rebuilt APKs and of the logs
+     */
+    default String getName() {
+        return getClass().getSimpleName();
+    }
 }
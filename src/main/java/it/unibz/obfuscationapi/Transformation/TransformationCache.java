@@ -0,0 +1,241 @@
+package it.unibz.obfuscationapi.Transformation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static it.unibz.obfuscationapi.Utility.Utilities.CHAR_ENCODING;
+import static it.unibz.obfuscationapi.Utility.Utilities.setRandomSeed;
+
+/**
+ * On-disk cache of the files transformed by the {@link SmaliTransformation transformations}, shared across runs and
+ * APKs<br>
+ * An entry is addressed by the SHA-256 of the contents of the file, the transformation, its parameters and the seed of
+ * the cache, so classes that appear in multiple APKs (e.g. bundled libraries) or in new builds of the same APK are
+ * transformed only once. Before a file is transformed, the random generator of the thread is reseeded from the same
+ * hash, which makes the output of the randomized transformations a function of the key, and therefore reusable<br>
+ * The total size of the entries is bounded: once it is exceeded, the least recently used entries are evicted
+ */
+public class TransformationCache {
+    private static Path directory;
+    private static long maxSize;
+    private static long seed;
+    private static long size;
+    // Entries by name with their size, in access order, so that the first one is the least recently used
+    private static final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Hits and misses of the lookups of a single execution of a transformation, kept apart from the ones of the
+     * transformations running at the same time on other variants
+     */
+    public static class Statistics {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+    }
+
+    /**
+     * Computes the transformed contents of a file
+     */
+    @FunctionalInterface
+    public interface Computation {
+        String compute() throws Exception;
+    }
+
+    /**
+     * Enables the cache, loading the index of the entries already stored in the directory
+     *
+     * @param directory directory where the entries are stored, created if it does not exist
+     * @param maxSize   maximum total size of the entries, in bytes
+     * @param seed      seed from which the random generators are reseeded for each file
+     * @throws IOException if the directory can't be created or read
+     */
+    synchronized public static void enable(String directory, long maxSize, long seed) throws IOException {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("The size of the cache must be positive, got " + maxSize);
+        Path dir = Paths.get(directory).toAbsolutePath();
+        Files.createDirectories(dir);
+        ArrayList<Path> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(dir)) {
+            stream.filter(Files::isRegularFile).filter(p -> !p.getFileName().toString().endsWith(".tmp")).forEach(files::add);
+        }
+        // Least recently used first, the last access of an entry being recorded as its modification time
+        files.sort((a, b) -> lastModified(a).compareTo(lastModified(b)));
+        entries.clear();
+        size = 0;
+        for (Path file : files) {
+            long length = Files.size(file);
+            entries.put(file.getFileName().toString(), length);
+            size += length;
+        }
+        TransformationCache.directory = dir;
+        TransformationCache.maxSize = maxSize;
+        TransformationCache.seed = seed;
+        evict();
+    }
+
+    synchronized public static void disable() {
+        directory = null;
+        entries.clear();
+        size = 0;
+    }
+
+    synchronized public static boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * @return the hits of all the transformations since the JVM started
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the misses of all the transformations since the JVM started
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the transformed contents of a file from the cache, computing and storing them on a miss
+     *
+     * @param transformation name identifying the transformation
+     * @param parameters     settings of the transformation affecting its output
+     * @param content        contents of the file to transform
+     * @param computation    computes the transformed contents
+     * @param statistics     hits and misses of the execution of the transformation, updated with this lookup
+     * @return the transformed contents
+     * @throws Exception if the computation fails
+     */
+    public static String apply(String transformation, String parameters, String content, Computation computation,
+                               Statistics statistics) throws Exception {
+        byte[] key = key(transformation, parameters, content);
+        setRandomSeed(ByteBuffer.wrap(key).getLong());
+        String name = HexFormat.of().formatHex(key);
+        Path entry = resolve(name);
+        if (entry != null && contains(name)) {
+            try {
+                String cached = Files.readString(entry, Charset.forName(CHAR_ENCODING));
+                Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+                hits.incrementAndGet();
+                statistics.hits.incrementAndGet();
+                return cached;
+            } catch (NoSuchFileException e) {
+                // Evicted in the meantime by another thread, the contents are computed again
+                remove(name);
+            }
+        }
+        misses.incrementAndGet();
+        statistics.misses.incrementAndGet();
+        String result = computation.compute();
+        if (entry != null)
+            store(name, entry, result);
+        return result;
+    }
+
+    private static byte[] key(String transformation, String parameters, String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Charset charset = Charset.forName(CHAR_ENCODING);
+            long currentSeed;
+            synchronized (TransformationCache.class) {
+                currentSeed = seed;
+            }
+            digest.update(transformation.getBytes(charset));
+            digest.update((byte) 0);
+            digest.update(parameters.getBytes(charset));
+            digest.update((byte) 0);
+            digest.update(ByteBuffer.allocate(Long.BYTES).putLong(currentSeed).array());
+            digest.update(content.getBytes(charset));
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the path of the entry, in a subdirectory named after the first two characters to keep the directories
+     * small, or null if the cache was disabled
+     */
+    synchronized private static Path resolve(String name) {
+        return directory == null ? null : directory.resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    synchronized private static boolean contains(String name) {
+        return entries.get(name) != null;
+    }
+
+    synchronized private static void remove(String name) {
+        Long length = entries.remove(name);
+        if (length != null)
+            size -= length;
+    }
+
+    /**
+     * Writes an entry through a temporary file, so that a concurrent reader never sees it partially written
+     */
+    private static void store(String name, Path entry, String result) {
+        byte[] bytes = result.getBytes(Charset.forName(CHAR_ENCODING));
+        try {
+            Files.createDirectories(entry.getParent());
+            Path tmp = Files.createTempFile(entry.getParent(), name, ".tmp");
+            Files.write(tmp, bytes);
+            Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        synchronized (TransformationCache.class) {
+            Long previous = entries.put(name, (long) bytes.length);
+            size += bytes.length - (previous == null ? 0 : previous);
+            evict();
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the total size is within the limit
+     */
+    private static void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue();
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.getKey().substring(0, 2)).resolve(eldest.getKey()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
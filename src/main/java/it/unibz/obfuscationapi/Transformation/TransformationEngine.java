@@ -0,0 +1,127 @@
+package it.unibz.obfuscationapi.Transformation;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Class that executes a per-file task on a list of files, splitting the list in work units that are processed in
+ * parallel on a {@link ForkJoinPool ForkJoinPool}<br>
+ * Once the files are processed, the engine reports the wall time of the execution and the speedup, estimated as the
+ * total time spent processing the work units over the wall time
+ */
+public class TransformationEngine {
+    private static int parallelism = Runtime.getRuntime().availableProcessors();
+    private static ForkJoinPool pool;
+
+    /**
+     * Task applied by the engine to each file
+     */
+    @FunctionalInterface
+    public interface FileTask {
+        void process(String file) throws Exception;
+    }
+
+    /**
+     * Sets the number of threads used to process the files; with a parallelism of 1 the files are processed
+     * sequentially on the calling thread
+     *
+     * @param parallelism number of threads to use
+     */
+    synchronized public static void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1, got " + parallelism);
+        if (TransformationEngine.parallelism != parallelism && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        TransformationEngine.parallelism = parallelism;
+    }
+
+    synchronized public static int getParallelism() {
+        return parallelism;
+    }
+
+    synchronized private static ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool(parallelism);
+        return pool;
+    }
+
+    /**
+     * Applies the task to all the files; the first exception thrown by the task stops the processing of the files not
+     * yet started and is rethrown once the running work units have completed
+     *
+     * @param name  name of the transformation, used in the report
+     * @param files list of files to process
+     * @param task  task to apply to each file
+     * @throws Exception the first exception thrown by the task
+     */
+    public static void run(String name, List<String> files, FileTask task) throws Exception {
+        if (files.isEmpty())
+            return;
+        AtomicLong busyTime = new AtomicLong();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        int threads = getParallelism();
+        long start = System.nanoTime();
+        if (threads == 1) {
+            new WorkUnit(files, 0, files.size(), files.size(), task, busyTime, failure).compute();
+        } else {
+            // Work units small enough for the pool to balance files of very different sizes, but large enough to
+            // keep the overhead of the splitting negligible
+            int unitSize = Math.max(1, Math.min(64, files.size() / (threads * 8)));
+            getPool().invoke(new WorkUnit(files, 0, files.size(), unitSize, task, busyTime, failure));
+        }
+        long wallTime = System.nanoTime() - start;
+        if (failure.get() != null)
+            throw failure.get();
+        System.out.println(name + ": processed " + files.size() + " files in " + wallTime / 1_000_000 + " ms on "
+                + threads + " threads (speedup " + String.format("%.2f", (double) busyTime.get() / Math.max(1, wallTime)) + "x)");
+    }
+
+    /**
+     * Contiguous range of files, split in halves until it contains at most unitSize files; it is never serialized
+     */
+    @SuppressWarnings("serial")
+    private static class WorkUnit extends RecursiveAction {
+        private final List<String> files;
+        private final int from;
+        private final int to;
+        private final int unitSize;
+        private final FileTask task;
+        private final AtomicLong busyTime;
+        private final AtomicReference<Exception> failure;
+
+        WorkUnit(List<String> files, int from, int to, int unitSize, FileTask task, AtomicLong busyTime,
+                 AtomicReference<Exception> failure) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.unitSize = unitSize;
+            this.task = task;
+            this.busyTime = busyTime;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > unitSize) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new WorkUnit(files, from, middle, unitSize, task, busyTime, failure),
+                        new WorkUnit(files, middle, to, unitSize, task, busyTime, failure));
+                return;
+            }
+            long start = System.nanoTime();
+            for (int i = from; i < to && failure.get() == null; i++) {
+                try {
+                    task.process(files.get(i));
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+            busyTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+}
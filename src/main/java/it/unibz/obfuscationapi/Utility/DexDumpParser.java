@@ -0,0 +1,273 @@
+package it.unibz.obfuscationapi.Utility;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Class that counts the unique methods in the dump of a dex file generated by dexdump -d, supplied by the user since the
+ * decompilation no longer generates the dumps: Obfuscation uses it when the dex files of the APK can't be read<br>
+ * The dump is read once through a fixed-size buffer and parsed line by line by a state machine that follows the
+ * sections of each class (Class #, Direct methods, Virtual methods, source_file_idx): inside the methods sections it
+ * collects the methods declared, from their (in ...), name and type lines, and the methods invoked, from the invoke
+ * instructions. Each method is identified by a 64-bit hash of its class, name and signature, computed on the bytes of
+ * the line without creating strings, and stored in a set of longs, so the memory used only depends on the number of
+ * methods and not on the size of the dump
+ */
+public class DexDumpParser {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] CLASS = bytes("Class #");
+    private static final byte[] DIRECT_METHODS = bytes("Direct methods");
+    private static final byte[] VIRTUAL_METHODS = bytes("Virtual methods");
+    private static final byte[] SOURCE_FILE = bytes("source_file_idx");
+    private static final byte[] IN_CLASS = bytes("(in ");
+    private static final byte[] NAME = bytes("name");
+    private static final byte[] TYPE = bytes("type");
+    private static final byte[] INVOKE = bytes("invoke-");
+    private static final byte[] REGISTERS_END = bytes("}, ");
+    private static final byte[] ARROW = bytes("->");
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private enum State {OUTSIDE_METHODS, METHODS}
+
+    private final LongHashSet methods = new LongHashSet();
+    private State state = State.OUTSIDE_METHODS;
+    // Hash of the method being declared, updated by the (in ...), name and type lines, 0 if none is pending
+    private long declaration;
+
+    private DexDumpParser() {
+    }
+
+    /**
+     * Counts the unique methods declared or invoked in the classes of a dex file, which are the ones counted towards
+     * the limit of 65536 methods of the dex file
+     *
+     * @param dexDump path to the dump of the dex file
+     * @return the number of unique methods
+     * @throws IOException if the dump can't be read
+     */
+    public static int countMethods(String dexDump) throws IOException {
+        try (InputStream is = new FileInputStream(dexDump)) {
+            return countMethods(is);
+        }
+    }
+
+    /**
+     * @param is stream of the dump of a dex file
+     * @return the number of unique methods declared or invoked in the dump
+     * @throws IOException if the stream can't be read
+     */
+    public static int countMethods(InputStream is) throws IOException {
+        DexDumpParser parser = new DexDumpParser();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length = 0;
+        // True while skipping the rest of a line longer than the buffer, whose beginning was already parsed
+        boolean skipping = false;
+        int read;
+        while ((read = is.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            int lineStart = 0;
+            for (int i = 0; i < length; i++) {
+                if (buffer[i] != '\n')
+                    continue;
+                if (!skipping)
+                    parser.parseLine(buffer, lineStart, i);
+                skipping = false;
+                lineStart = i + 1;
+            }
+            if (lineStart == 0 && length == buffer.length) {
+                // Line longer than the buffer: only its beginning is relevant
+                if (!skipping)
+                    parser.parseLine(buffer, 0, length);
+                skipping = true;
+                length = 0;
+            } else {
+                System.arraycopy(buffer, lineStart, buffer, 0, length - lineStart);
+                length -= lineStart;
+            }
+        }
+        if (length > 0 && !skipping)
+            parser.parseLine(buffer, 0, length);
+        return parser.methods.size();
+    }
+
+    private void parseLine(byte[] line, int from, int to) {
+        if (to > from && line[to - 1] == '\r')
+            to--;
+        int start = skipSpaces(line, from, to);
+        if (start == to)
+            return;
+        if (startsWith(line, from, to, CLASS) || startsWith(line, start, to, SOURCE_FILE)) {
+            state = State.OUTSIDE_METHODS;
+            declaration = 0;
+            return;
+        }
+        if (startsWith(line, start, to, DIRECT_METHODS) || startsWith(line, start, to, VIRTUAL_METHODS)) {
+            state = State.METHODS;
+            declaration = 0;
+            return;
+        }
+        if (state != State.METHODS)
+            return;
+        int invoke = indexOf(line, from, to, INVOKE);
+        if (invoke != -1) {
+            parseInvoke(line, invoke, to);
+            return;
+        }
+        int in = indexOf(line, start, to, IN_CLASS);
+        if (line[start] == '#' && in != -1) {
+            int end = indexOf(line, in, to, (byte) ')');
+            declaration = end == -1 ? 0 : hash(FNV_OFFSET, line, in + IN_CLASS.length, end);
+        } else if (declaration != 0 && isField(line, start, to, NAME)) {
+            int[] value = quotedValue(line, start, to);
+            declaration = value == null ? 0 : hash(hash(declaration, ARROW, 0, ARROW.length), line, value[0], value[1]);
+        } else if (declaration != 0 && isField(line, start, to, TYPE)) {
+            int[] value = quotedValue(line, start, to);
+            if (value != null)
+                methods.add(hash(declaration, line, value[0], value[1]));
+            declaration = 0;
+        }
+    }
+
+    /**
+     * Parses the method referenced by an invoke instruction, in the form Lclass;.name:signature
+     */
+    private void parseInvoke(byte[] line, int invoke, int to) {
+        int registersEnd = indexOf(line, invoke, to, REGISTERS_END);
+        if (registersEnd == -1)
+            return;
+        int start = registersEnd + REGISTERS_END.length;
+        int end = indexOf(line, start, to, (byte) ' ');
+        if (end == -1)
+            end = to;
+        int classEnd = -1;
+        for (int i = start; i < end - 1; i++) {
+            if (line[i] == ';' && line[i + 1] == '.') {
+                classEnd = i + 1;
+                break;
+            }
+        }
+        if (classEnd == -1)
+            return;
+        int colon = indexOf(line, classEnd, end, (byte) ':');
+        if (colon == -1)
+            return;
+        long h = hash(FNV_OFFSET, line, start, classEnd);
+        h = hash(h, ARROW, 0, ARROW.length);
+        h = hash(h, line, classEnd + 1, colon);
+        methods.add(hash(h, line, colon + 1, end));
+    }
+
+    /**
+     * @return true if the line is a field of the dump with the given label, e.g. name          : 'value'
+     */
+    private static boolean isField(byte[] line, int start, int to, byte[] label) {
+        if (!startsWith(line, start, to, label))
+            return false;
+        int i = skipSpaces(line, start + label.length, to);
+        return i < to && line[i] == ':';
+    }
+
+    /**
+     * @return the range of the value between the first and the last quote of the line, or null if it is not quoted
+     */
+    private static int[] quotedValue(byte[] line, int from, int to) {
+        int first = indexOf(line, from, to, (byte) '\'');
+        int last = to - 1;
+        while (last > first && line[last] != '\'')
+            last--;
+        return first == -1 || last <= first ? null : new int[]{first + 1, last};
+    }
+
+    private static long hash(long h, byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            h ^= bytes[i] & 0xff;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static int skipSpaces(byte[] line, int from, int to) {
+        while (from < to && (line[from] == ' ' || line[from] == '\t'))
+            from++;
+        return from;
+    }
+
+    private static boolean startsWith(byte[] line, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[from + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] line, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (line[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] line, int from, int to, byte[] pattern) {
+        for (int i = from; i <= to - pattern.length; i++) {
+            if (startsWith(line, i, to, pattern))
+                return i;
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Open addressing set of longs, with 0 marking the empty slots
+     */
+    private static class LongHashSet {
+        private long[] slots = new long[1 << 12];
+        private int size;
+        private boolean containsZero;
+
+        void add(long value) {
+            if (value == 0) {
+                if (!containsZero) {
+                    containsZero = true;
+                    size++;
+                }
+                return;
+            }
+            if ((size + 1) * 2 > slots.length)
+                grow();
+            if (insert(slots, value))
+                size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private static boolean insert(long[] slots, long value) {
+            int mask = slots.length - 1;
+            int i = (int) (value ^ (value >>> 32)) & mask;
+            while (slots[i] != 0) {
+                if (slots[i] == value)
+                    return false;
+                i = (i + 1) & mask;
+            }
+            slots[i] = value;
+            return true;
+        }
+
+        private void grow() {
+            long[] grown = new long[slots.length * 2];
+            Arrays.stream(slots).filter(v -> v != 0).forEach(v -> insert(grown, v));
+            slots = grown;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package it.unibz.obfuscationapi.Utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Enumeration;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Class that counts the method references of the dex files of an APK reading their headers<br>
+ * The limit of 65536 methods of a dex file applies to the entries of its method_ids table, whose size is stored in the
+ * header: the table contains every method declared or referenced by the classes of the dex file, once, so the size is
+ * the exact number of methods counted towards the limit. Only the first 112 bytes of each dex file are read, straight
+ * from the APK, without extracting or dumping it
+ */
+public class DexMethodCounter {
+    private static final Pattern DEX_NAME = Pattern.compile("classes([0-9]*)\\.dex");
+    private static final int HEADER_SIZE = 0x70;
+    private static final int ENDIAN_TAG_OFFSET = 0x28;
+    private static final int METHOD_IDS_SIZE_OFFSET = 0x58;
+    private static final int ENDIAN_CONSTANT = 0x12345678;
+
+    /**
+     * Counts the method references of every dex file in the root of the APK
+     *
+     * @param pathToApk path to the APK
+     * @return the number of method references by index of the dex file, 1 for classes.dex, n for classesn.dex
+     * @throws IOException if the APK can't be read or a dex file is not valid
+     */
+    public static TreeMap<Integer, Integer> countMethodReferences(String pathToApk) throws IOException {
+        TreeMap<Integer, Integer> methodsByDex = new TreeMap<>();
+        try (ZipFile apk = new ZipFile(pathToApk)) {
+            Enumeration<? extends ZipEntry> entries = apk.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                Matcher matcher = DEX_NAME.matcher(entry.getName());
+                if (!matcher.matches())
+                    continue;
+                int index = matcher.group(1).isEmpty() ? 1 : Integer.parseInt(matcher.group(1));
+                try (InputStream is = apk.getInputStream(entry)) {
+                    methodsByDex.put(index, readMethodIdsSize(is, entry.getName()));
+                }
+            }
+        }
+        return methodsByDex;
+    }
+
+    /**
+     * Reads the size of the method_ids table from the header of a dex file
+     *
+     * @param is   stream positioned at the beginning of the dex file
+     * @param name name of the dex file, used in the error messages
+     * @return the number of method references of the dex file
+     * @throws IOException if the stream can't be read or does not contain a dex file
+     */
+    public static int readMethodIdsSize(InputStream is, String name) throws IOException {
+        byte[] header = is.readNBytes(HEADER_SIZE);
+        if (header.length < HEADER_SIZE || header[0] != 'd' || header[1] != 'e' || header[2] != 'x' || header[3] != '\n')
+            throw new IOException(name + " is not a dex file");
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(ENDIAN_TAG_OFFSET) != ENDIAN_CONSTANT)
+            throw new IOException(name + " is not a little-endian dex file");
+        int methodIdsSize = buffer.getInt(METHOD_IDS_SIZE_OFFSET);
+        if (methodIdsSize < 0)
+            throw new IOException(name + " declares an invalid number of methods: " + Integer.toUnsignedString(methodIdsSize));
+        return methodIdsSize;
+    }
+}
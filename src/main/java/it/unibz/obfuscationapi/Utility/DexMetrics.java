@@ -0,0 +1,112 @@
+package it.unibz.obfuscationapi.Utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+/**
+ * Metrics of the dex files of an APK (the number of methods of each dex file), computed the first time they are
+ * requested and persisted in a sidecar file named after the SHA-256 of the APK, so that the following runs on the same
+ * APK read them instead of counting the methods again
+ */
+public class DexMetrics {
+    private static final Path METRICS_DIR = Paths.get("decompiled", "metrics");
+    private final String pathToApk;
+    private final Callable<TreeMap<Integer, Integer>> counter;
+    private TreeMap<Integer, Integer> methodsByDex;
+
+    /**
+     * @param pathToApk path to the APK
+     * @param counter   counts the methods of each dex file of the APK, by index of the dex file, when they are not
+     *                  found in the sidecar file
+     */
+    public DexMetrics(String pathToApk, Callable<TreeMap<Integer, Integer>> counter) {
+        this.pathToApk = pathToApk;
+        this.counter = counter;
+    }
+
+    /**
+     * Returns the number of methods of each dex file, reading them from the sidecar file of the APK if it exists,
+     * counting and persisting them otherwise
+     *
+     * @return the number of methods by index of the dex file, 1 for classes.dex, n for classesn.dex
+     * @throws Exception if the methods can't be counted
+     */
+    synchronized public TreeMap<Integer, Integer> getMethodsByDex() throws Exception {
+        if (methodsByDex != null)
+            return new TreeMap<>(methodsByDex);
+        Path sidecar = null;
+        try {
+            sidecar = METRICS_DIR.resolve(sha256(pathToApk) + ".properties");
+            if (Files.exists(sidecar)) {
+                methodsByDex = read(sidecar);
+                return new TreeMap<>(methodsByDex);
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Could not read the dex metrics of " + pathToApk + ": " + e);
+        }
+        methodsByDex = counter.call();
+        if (sidecar != null) {
+            try {
+                write(sidecar, methodsByDex);
+            } catch (IOException e) {
+                System.out.println("Could not save the dex metrics of " + pathToApk + ": " + e);
+            }
+        }
+        return new TreeMap<>(methodsByDex);
+    }
+
+    private static TreeMap<Integer, Integer> read(Path sidecar) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(sidecar, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        TreeMap<Integer, Integer> methodsByDex = new TreeMap<>();
+        for (String dex : properties.stringPropertyNames())
+            methodsByDex.put(Integer.parseInt(dex), Integer.parseInt(properties.getProperty(dex)));
+        return methodsByDex;
+    }
+
+    /**
+     * Writes the sidecar file through a temporary file, so that a concurrent run never reads it partially written
+     */
+    private void write(Path sidecar, TreeMap<Integer, Integer> methodsByDex) throws IOException {
+        Properties properties = new Properties();
+        methodsByDex.forEach((dex, methods) -> properties.setProperty(String.valueOf(dex), String.valueOf(methods)));
+        Files.createDirectories(sidecar.getParent());
+        Path tmp = Files.createTempFile(sidecar.getParent(), sidecar.getFileName().toString(), ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                properties.store(writer, "Methods by dex file of " + pathToApk);
+            }
+            Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static String sha256(String file) throws IOException {
+        try (InputStream is = Files.newInputStream(Paths.get(file))) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = is.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -3,13 +3,16 @@ package it.unibz.obfuscationapi.Utility;
 import it.unibz.obfuscationapi.Obfuscation.CommandExecution;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.stream.Stream;
 
 /**
  * Class containing static fields and methods useful in multiple transformations
@@ -19,16 +22,26 @@ public class Utilities {
     public final static char TAB = '\t';
     public final static String LS = System.lineSeparator();
     public final static String SEPARATOR = File.separator;
-    private final static Random RANDOM = new Random();
+    // Every thread has its own generator, so the transformations processing files in parallel do not contend for it
+    private final static ThreadLocal<Random> RANDOM = ThreadLocal.withInitial(Random::new);
     private final static String pathOfProject = Paths.get("").toAbsolutePath().toString();
     private static int errorLogCount = 0;
 
+    /**
+     * Reseeds the random generator of the current thread, making the following random values reproducible
+     *
+     * @param seed the new seed
+     */
+    public static void setRandomSeed(long seed) {
+        RANDOM.get().setSeed(seed);
+    }
+
     public static int randInt(int max) {
         return randInt(0, max);
     }
 
     public static int randInt(int min, int max) {
-        return RANDOM.nextInt((max - min) + 1) + min;
+        return RANDOM.get().nextInt((max - min) + 1) + min;
     }
 
     /**
@@ -100,6 +113,49 @@ public class Utilities {
         return copy;
     }
 
+    /**
+     * Returns file contents as a string, with the same line separators as
+     * {@link Utilities#getStringBufferFromFile(String) getStringBufferFromFile}, reading the whole file at once instead
+     * of line by line
+     *
+     * @param path path of the file
+     * @return String containing the file contents
+     * @throws IOException if the file can't be read
+     */
+    public static String readFile(Path path) throws IOException {
+        return normalizeLineSeparators(Files.readString(path, Charset.forName(CHAR_ENCODING)));
+    }
+
+    /**
+     * Replaces every line separator (\r\n, \r or \n) with {@link Utilities#LS LS} and terminates the last line with it
+     *
+     * @param text text to normalize
+     * @return the normalized text
+     */
+    public static String normalizeLineSeparators(String text) {
+        if (text.isEmpty())
+            return text;
+        if (LS.equals("\n") && text.indexOf('\r') == -1)
+            return text.endsWith(LS) ? text : text + LS;
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\r') {
+                if (i + 1 < text.length() && text.charAt(i + 1) == '\n')
+                    i++;
+                sb.append(LS);
+            } else if (c == '\n') {
+                sb.append(LS);
+            } else {
+                sb.append(c);
+            }
+        }
+        char last = text.charAt(text.length() - 1);
+        if (last != '\n' && last != '\r')
+            sb.append(LS);
+        return sb.toString();
+    }
+
     /**
      * Generates a random string of a given length using a given charset, alternatively using lower and upper case chars
      * if no other charset is provided
@@ -186,7 +242,7 @@ public class Utilities {
      */
     public static <E> void shuffleArray(ArrayList<E> array) {
         for (int i = array.size() - 1; i > 0; i--) {
-            int index = RANDOM.nextInt(i + 1);
+            int index = RANDOM.get().nextInt(i + 1);
             E a = array.get(index);
             array.set(index, array.get(i));
             array.set(i, a);
@@ -210,6 +266,21 @@ public class Utilities {
         }
     }
 
+    /**
+     * Deletes a directory with all its contents, doing nothing if it does not exist
+     *
+     * @param dir path of the directory
+     * @throws IOException if a file can't be deleted
+     */
+    public static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.exists(dir))
+            return;
+        try (Stream<Path> stream = Files.walk(dir)) {
+            for (Path path : stream.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(path);
+        }
+    }
+
     synchronized public static void writeErrorLog(StringBuilder args) throws IOException {
         Path path = Paths.get("errors", "error" + errorLogCount + ".txt");
         errorLogCount++;